@@ -0,0 +1,88 @@
+package speclang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the scalar loops of Numerics with those in use, which are
+ * SimdNumerics when the jdk.incubator.vector module is present, as it is
+ * in the forks. Each benchmark returns what it computes, so that JMH
+ * consumes it. Run with ./gradlew jmh.
+ *
+ * @author hridesh
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class NumericsBenchmark {
+	@Param({ "1024", "4194304" })
+	public int size;
+
+	@Param({ "scalar", "simd" })
+	public String loops;
+
+	private Numerics _numerics;
+	private double[] _x;
+	private double[] _y;
+
+	@Setup
+	public void setup() {
+		_numerics = loops.equals("scalar") ? new Numerics.Scalar() : Numerics.INSTANCE;
+		_x = new double[size];
+		_y = new double[size];
+		for (int i = 0; i < size; i++) {
+			_x[i] = (i % 100) / 10.0;
+			_y[i] = 1 + (i % 7);
+		}
+	}
+
+	@Benchmark
+	public double sum() {
+		return _numerics.sum(_x);
+	}
+
+	@Benchmark
+	public double product() {
+		return _numerics.product(_y);
+	}
+
+	@Benchmark
+	public double dot() {
+		return _numerics.dot(_x, _y);
+	}
+
+	@Benchmark
+	public double min() {
+		return _numerics.min(_x);
+	}
+
+	@Benchmark
+	public double max() {
+		return _numerics.max(_x);
+	}
+
+	@Benchmark
+	public double[] scale() {
+		return _numerics.scale(2, _x);
+	}
+
+	@Benchmark
+	public double[] axpy() {
+		return _numerics.axpy(2, _x, _y);
+	}
+}
@@ -0,0 +1,95 @@
+package speclang;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The loops of Numerics over the lanes of the widest vector registers the
+ * machine has, with a scalar loop for the elements left over. Only loaded
+ * when the jdk.incubator.vector module is present, and only compiled with
+ * it, apart from src/.
+ *
+ * @author hridesh
+ *
+ */
+class SimdNumerics extends Numerics {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	double sum(double[] v) {
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(v.length); i < bound; i += SPECIES.length())
+			acc = acc.add(DoubleVector.fromArray(SPECIES, v, i));
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < v.length; i++)
+			sum += v[i];
+		return sum;
+	}
+
+	double product(double[] v) {
+		DoubleVector acc = DoubleVector.broadcast(SPECIES, 1);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(v.length); i < bound; i += SPECIES.length())
+			acc = acc.mul(DoubleVector.fromArray(SPECIES, v, i));
+		double product = acc.reduceLanes(VectorOperators.MUL);
+		for (; i < v.length; i++)
+			product *= v[i];
+		return product;
+	}
+
+	double dot(double[] x, double[] y) {
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(x.length); i < bound; i += SPECIES.length())
+			acc = acc.add(DoubleVector.fromArray(SPECIES, x, i).mul(DoubleVector.fromArray(SPECIES, y, i)));
+		double dot = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < x.length; i++)
+			dot += x[i] * y[i];
+		return dot;
+	}
+
+	// MIN and MAX follow Math.min and Math.max, NaN and -0.0 included.
+	double min(double[] v) {
+		DoubleVector acc = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(v.length); i < bound; i += SPECIES.length())
+			acc = acc.min(DoubleVector.fromArray(SPECIES, v, i));
+		double min = acc.reduceLanes(VectorOperators.MIN);
+		for (; i < v.length; i++)
+			min = Math.min(min, v[i]);
+		return min;
+	}
+
+	double max(double[] v) {
+		DoubleVector acc = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(v.length); i < bound; i += SPECIES.length())
+			acc = acc.max(DoubleVector.fromArray(SPECIES, v, i));
+		double max = acc.reduceLanes(VectorOperators.MAX);
+		for (; i < v.length; i++)
+			max = Math.max(max, v[i]);
+		return max;
+	}
+
+	double[] scale(double a, double[] x) {
+		double[] result = new double[x.length];
+		int i = 0;
+		for (int bound = SPECIES.loopBound(x.length); i < bound; i += SPECIES.length())
+			DoubleVector.fromArray(SPECIES, x, i).mul(a).intoArray(result, i);
+		for (; i < x.length; i++)
+			result[i] = a * x[i];
+		return result;
+	}
+
+	double[] axpy(double a, double[] x, double[] y) {
+		double[] result = new double[x.length];
+		int i = 0;
+		for (int bound = SPECIES.loopBound(x.length); i < bound; i += SPECIES.length())
+			DoubleVector.fromArray(SPECIES, x, i).mul(a).add(DoubleVector.fromArray(SPECIES, y, i)).intoArray(result,
+					i);
+		for (; i < x.length; i++)
+			result[i] = a * x[i] + y[i];
+		return result;
+	}
+}
@@ -1,6 +1,7 @@
 package speclang;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -41,7 +42,13 @@ public interface AST {
 	}
 
 	public static class VarExp extends Exp {
+		public static final int GLOBAL = -1;
+		public static final int UNRESOLVED = -2;
+
 		String _name;
+		int _depth = UNRESOLVED; // Lexical address, computed by the Resolver
+		int _slot = -1;
+		Exp _binding = null; // Also computed by the Resolver
 
 		public VarExp(String name) {
 			_name = name;
@@ -51,6 +58,36 @@ public interface AST {
 			return _name;
 		}
 
+		/**
+		 * Number of environment hops to the binding, or GLOBAL if the slot is
+		 * an index into the global table, or UNRESOLVED if the variable must be
+		 * looked up by name.
+		 */
+		public int depth() {
+			return _depth;
+		}
+
+		public int slot() {
+			return _slot;
+		}
+
+		void resolve(int depth, int slot) {
+			_depth = depth;
+			_slot = slot;
+		}
+
+		/**
+		 * The expression whose value the variable is bound to by a define, let
+		 * or letrec, or null if it is a formal or is not resolved.
+		 */
+		public Exp binding() {
+			return _binding;
+		}
+
+		void bind(Exp binding) {
+			_binding = binding;
+		}
+
 		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
 			return visitor.visit(this, env);
 		}
@@ -69,15 +106,21 @@ public interface AST {
 
 	public static class NumExp extends Exp {
 		double _val;
+		Value.NumVal _value; // The literal, boxed once
 
 		public NumExp(double v) {
 			_val = v;
+			_value = Value.NumVal.of(v);
 		}
 
 		public double v() {
 			return _val;
 		}
 
+		public Value.NumVal value() {
+			return _value;
+		}
+
 		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
 			return visitor.visit(this, env);
 		}
@@ -306,6 +349,7 @@ public interface AST {
 		String _name;
 		Type _type;
 		Exp _value_exp;
+		int _slot = -1; // Global slot, computed by the Resolver
 
 		public DefineDecl(String name, Type type, Exp value_exp) {
 			_name = name;
@@ -328,6 +372,14 @@ public interface AST {
 		public Exp value_exp() {
 			return _value_exp;
 		}
+
+		public int slot() {
+			return _slot;
+		}
+
+		void resolve(int slot) {
+			_slot = slot;
+		}
 	}
 
 	/**
@@ -341,6 +393,7 @@ public interface AST {
 		List<Type> _types;
 		Exp _body;
 		Spec _spec; // New for SpecLang
+		Type _type = null; // Set by the Checker
 
 		public LambdaExp(List<String> formals, List<Type> types, Spec spec, Exp body) {
 			_formals = formals;
@@ -365,6 +418,14 @@ public interface AST {
 			return _body;
 		}
 
+		public Type type() {
+			return _type;
+		}
+
+		void setType(Type type) {
+			_type = type;
+		}
+
 		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
 			return visitor.visit(this, env);
 		}
@@ -379,6 +440,10 @@ public interface AST {
 	public static class CallExp extends Exp {
 		Exp _operator;
 		List<Exp> _operands;
+		boolean _tail = false; // Set by the Resolver
+		boolean _recursive = false; // Set by the Resolver
+		CallExp _origin = null; // Set by the Optimizer, or by Primitives
+		CallExp[] _sites = null; // Made by Primitives
 
 		public CallExp(Exp operator, List<Exp> operands) {
 			_operator = operator;
@@ -393,6 +458,54 @@ public interface AST {
 			return _operands;
 		}
 
+		/**
+		 * @return true if the value of this call is the value of the
+		 * enclosing function body.
+		 */
+		public boolean isTail() {
+			return _tail;
+		}
+
+		void setTail() {
+			_tail = true;
+		}
+
+		/**
+		 * @return true if this call is in the body of a function that the
+		 * operator is bound to by the same define or letrec, i.e. the
+		 * called function is in the recursive group of the caller.
+		 */
+		public boolean isRecursive() {
+			return _recursive;
+		}
+
+		void setRecursive() {
+			_recursive = true;
+		}
+
+		/**
+		 * @return the call that was inlined, if this call was made by the
+		 * inlined code to report a spec violation, or the call of a
+		 * primitive, if this call is made by the primitive; null otherwise.
+		 */
+		public CallExp origin() {
+			return _origin;
+		}
+
+		void setOrigin(CallExp origin) {
+			_origin = origin;
+		}
+
+		/**
+		 * @return the calls that a primitive this call calls makes, by their
+		 * number of operands, as far as they were made.
+		 */
+		CallExp[] sites() {
+			if (_sites == null)
+				_sites = new CallExp[3];
+			return _sites;
+		}
+
 		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
 			return visitor.visit(this, env);
 		}
@@ -718,6 +831,186 @@ public interface AST {
 		}
 	}
 
+	/**
+	 * A vector expression has the syntax
+	 * 
+	 * (vector : type expression*)
+	 * 
+	 * @author hridesh
+	 *
+	 */
+	public static class VectorExp extends Exp {
+		private Type _type;
+		private List<Exp> _elems;
+
+		public VectorExp(Type type, List<Exp> elems) {
+			_type = type;
+			_elems = elems;
+		}
+
+		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
+			return visitor.visit(this, env);
+		}
+
+		public Type type() {
+			return _type;
+		}
+
+		public List<Exp> elems() {
+			return _elems;
+		}
+	}
+
+	/**
+	 * A make-vector expression has the syntax
+	 * 
+	 * (make-vector expression expression)
+	 * 
+	 * @author hridesh
+	 *
+	 */
+	public static class MakeVectorExp extends Exp {
+		private Exp _size;
+		private Exp _init;
+
+		public MakeVectorExp(Exp size, Exp init) {
+			_size = size;
+			_init = init;
+		}
+
+		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
+			return visitor.visit(this, env);
+		}
+
+		public Exp size() {
+			return _size;
+		}
+
+		public Exp init() {
+			return _init;
+		}
+	}
+
+	/**
+	 * A vector-ref expression has the syntax
+	 * 
+	 * (vector-ref expression expression)
+	 * 
+	 * @author hridesh
+	 *
+	 */
+	public static class VectorRefExp extends Exp {
+		private Exp _vec;
+		private Exp _index;
+
+		public VectorRefExp(Exp vec, Exp index) {
+			_vec = vec;
+			_index = index;
+		}
+
+		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
+			return visitor.visit(this, env);
+		}
+
+		public Exp vec() {
+			return _vec;
+		}
+
+		public Exp index() {
+			return _index;
+		}
+	}
+
+	/**
+	 * A vector-length expression has the syntax
+	 * 
+	 * (vector-length expression)
+	 * 
+	 * @author hridesh
+	 *
+	 */
+	public static class VectorLengthExp extends Exp {
+		private Exp _vec;
+
+		public VectorLengthExp(Exp vec) {
+			_vec = vec;
+		}
+
+		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
+			return visitor.visit(this, env);
+		}
+
+		public Exp vec() {
+			return _vec;
+		}
+	}
+
+	/**
+	 * A vector-set! expression has the syntax
+	 * 
+	 * (vector-set! expression expression expression)
+	 * 
+	 * @author hridesh
+	 *
+	 */
+	public static class VectorSetExp extends Exp {
+		private Exp _vec;
+		private Exp _index;
+		private Exp _value_exp;
+
+		public VectorSetExp(Exp vec, Exp index, Exp value_exp) {
+			_vec = vec;
+			_index = index;
+			_value_exp = value_exp;
+		}
+
+		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
+			return visitor.visit(this, env);
+		}
+
+		public Exp vec() {
+			return _vec;
+		}
+
+		public Exp index() {
+			return _index;
+		}
+
+		public Exp value_exp() {
+			return _value_exp;
+		}
+	}
+
+	/**
+	 * Primitive expression: applies a built-in procedure that is implemented
+	 * in Java to the values of _args. It is only found in the bodies of the
+	 * functions that Primitives defines.
+	 * 
+	 * @author hridesh
+	 *
+	 */
+	public static class PrimitiveExp extends Exp {
+		private Primitives.Primitive _primitive;
+		private List<Exp> _args;
+
+		public PrimitiveExp(Primitives.Primitive primitive, List<Exp> args) {
+			_primitive = primitive;
+			_args = args;
+		}
+
+		public Primitives.Primitive primitive() {
+			return _primitive;
+		}
+
+		public List<Exp> args() {
+			return _args;
+		}
+
+		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
+			return visitor.visit(this, env);
+		}
+	}
+
 	/**
 	 * A letrec expression has the syntax
 	 * 
@@ -871,6 +1164,41 @@ public interface AST {
 
 	}
 
+	/**
+	 * A subexpression that occurs more than once in the conditions of a
+	 * specification. It has no syntax: the Optimizer replaces each occurrence
+	 * by the same shared expression, which is evaluated at most once per call
+	 * in the environment of the formals.
+	 *
+	 * @author hridesh
+	 *
+	 */
+	public static class SharedExp extends Exp {
+		private int _index;
+		private Exp _exp;
+
+		public SharedExp(int index, Exp exp) {
+			_index = index;
+			_exp = exp;
+		}
+
+		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
+			return visitor.visit(this, env);
+		}
+
+		/**
+		 * @return the position of the expression in FuncSpec.shared().
+		 */
+		public int index() {
+			return _index;
+		}
+
+		public Exp exp() {
+			return _exp;
+		}
+
+	}
+
 	public static class IsBooleanExp extends Exp {
 		private Exp e;
 
@@ -1018,6 +1346,8 @@ public interface AST {
 	public static class SpecCase extends Spec {
 		private List<Exp> preconditions;
 		private List<Exp> postconditions;
+		private boolean selects = false; // Set by the Checker
+		private boolean holds = false; // Set by the Checker
 
 		public SpecCase(List<Exp> preconditions, List<Exp> postconditions) {
 			this.preconditions = preconditions;
@@ -1031,6 +1361,52 @@ public interface AST {
 		public List<Exp> postconditions() {
 			return this.postconditions;
 		}
+
+		/**
+		 * @return true if the preconditions were proven to always hold.
+		 */
+		public boolean alwaysSelects() {
+			return this.selects;
+		}
+
+		/**
+		 * @return true if the postconditions were proven to hold whenever
+		 *         this case is selected.
+		 */
+		public boolean alwaysHolds() {
+			return this.holds;
+		}
+
+		void setAlwaysSelects() {
+			this.selects = true;
+		}
+
+		void setAlwaysHolds() {
+			this.holds = true;
+		}
+
+		/**
+		 * Keeps what was proven about s, of which this case is a copy.
+		 */
+		SpecCase provenAs(SpecCase s) {
+			this.selects = s.selects;
+			this.holds = s.holds;
+			return this;
+		}
+
+		/**
+		 * @return the preconditions that are left to check at runtime.
+		 */
+		public List<Exp> checkedPreconditions() {
+			return this.selects ? Collections.<Exp>emptyList() : this.preconditions;
+		}
+
+		/**
+		 * @return the postconditions that are left to check at runtime.
+		 */
+		public List<Exp> checkedPostconditions() {
+			return this.holds ? Collections.<Exp>emptyList() : this.postconditions;
+		}
 		
 		@Override
 		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
@@ -1041,15 +1417,29 @@ public interface AST {
 
 	public static class FuncSpec extends Spec {
 		private List<SpecCase> cases;
+		private List<Exp> shared;
 
 		public FuncSpec(List<SpecCase> cases) {
+			this(cases, new ArrayList<Exp>());
+		}
+
+		public FuncSpec(List<SpecCase> cases, List<Exp> shared) {
 			this.cases = cases;
+			this.shared = shared;
 		}
 
 		public List<SpecCase> speccases() {
 			return this.cases;
 		}
 
+		/**
+		 * @return the expressions of the SharedExps in the conditions, by
+		 * index.
+		 */
+		public List<Exp> shared() {
+			return this.shared;
+		}
+
 		@Override
 		public <T,U> T accept(Visitor<T,U> visitor, Env<U> env) throws ProgramError {
 			return visitor.visit(this, env);
@@ -1084,6 +1474,7 @@ public interface AST {
 		public T visit(AST.DefineDecl d, Env<U> env) throws ProgramError;
 		public T visit(AST.ReadExp e, Env<U> env) throws ProgramError;
 		public T visit(AST.EvalExp e, Env<U> env) throws ProgramError;
+		public T visit(AST.PrimitiveExp e, Env<U> env) throws ProgramError;
 		public T visit(AST.LambdaExp e, Env<U> env) throws ProgramError;
 		public T visit(AST.CallExp e, Env<U> env) throws ProgramError;
 		public T visit(AST.LetrecExp e, Env<U> env) throws ProgramError;
@@ -1110,6 +1501,12 @@ public interface AST {
 		public T visit(AST.DerefExp e, Env<U> env) throws ProgramError;
 		public T visit(AST.AssignExp e, Env<U> env) throws ProgramError;
 		public T visit(AST.FreeExp e, Env<U> env) throws ProgramError;
+		public T visit(AST.VectorExp e, Env<U> env) throws ProgramError;
+		public T visit(AST.MakeVectorExp e, Env<U> env) throws ProgramError;
+		public T visit(AST.VectorRefExp e, Env<U> env) throws ProgramError;
+		public T visit(AST.VectorLengthExp e, Env<U> env) throws ProgramError;
+		public T visit(AST.VectorSetExp e, Env<U> env) throws ProgramError;
+		public T visit(AST.SharedExp e, Env<U> env) throws ProgramError;
 		public T visit(AST.FuncSpec s, Env<U> env) throws ProgramError;
 		public T visit(AST.SpecCase s, Env<U> env) throws ProgramError;
 	}
@@ -0,0 +1,854 @@
+package speclang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import speclang.AST.*;
+import speclang.Env.*;
+import speclang.Type.*;
+import speclang.Value.*;
+
+/**
+ * A second tier for the NodeCompiler engine. A closure that has been called
+ * often enough, and whose body and specification only compute with numbers
+ * and booleans, is translated into a JVM class and loaded as a hidden class,
+ * so that the JIT can compile SpecLang arithmetic like Java arithmetic.
+ *
+ * The generated method works on unboxed double and boolean values. Recursive
+ * calls of the function to itself are compiled to direct calls, with the
+ * preconditions and postconditions of the callee checked inline, as far as
+ * the contract policy in force at compile time asks; a violation reports
+ * the recursive call expression, as the nodes do. The
+ * call that enters the generated code is still checked by Node.Call.
+ *
+ * Anything outside this fragment, e.g. lists, references or calls to other
+ * functions, makes compilation fail and the closure keeps running as nodes.
+ *
+ * @author hridesh
+ *
+ */
+public class BytecodeCompiler {
+	static final int DEFAULT_THRESHOLD = 1000;
+
+	/**
+	 * The interface implemented by generated classes.
+	 */
+	interface Code {
+		Value run(Value[] actuals) throws ProgramError;
+	}
+
+	@SuppressWarnings("serial")
+	static class Unsupported extends ProgramError {
+		Unsupported(String message) {
+			super(message);
+		}
+	}
+
+	private final MethodHandles.Lookup _lookup = MethodHandles.lookup();
+	private final GlobalEnv<Value> _globals;
+	private final int _threshold;
+	private int _compiled = 0;
+
+	public BytecodeCompiler(GlobalEnv<Value> globals, int threshold) {
+		_globals = globals;
+		_threshold = threshold;
+	}
+
+	/**
+	 * Number of calls after which a closure is compiled.
+	 */
+	int threshold() {
+		return _threshold;
+	}
+
+	/**
+	 * Number of closures compiled so far.
+	 */
+	int compiled() {
+		return _compiled;
+	}
+
+	/**
+	 * @return the compiled code of f, or null if f cannot be compiled, or
+	 *         its class cannot be loaded.
+	 */
+	Code compile(Node.Closure f, ContractPolicy policy) throws ProgramError {
+		byte[] bytes;
+		try {
+			bytes = generate(f, policy);
+		} catch (Unsupported e) {
+			return null;
+		}
+		try {
+			MethodHandles.Lookup hidden = _lookup.defineHiddenClass(bytes, true);
+			Code code = (Code) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class))
+					.invoke();
+			_compiled++;
+			return code;
+		} catch (LinkageError | ReflectiveOperationException e) {
+			return null; // e.g. the class was rejected by the verifier
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e); // The constructor throws no checked exceptions
+		}
+	}
+
+	private static final String CLASS = "speclang/CompiledFunction";
+	private static final String CODE = "speclang/BytecodeCompiler$Code";
+	private static final String VALUE = "speclang/Value";
+	private static final String NUMVAL = "speclang/Value$NumVal";
+	private static final String BOOLVAL = "speclang/Value$BoolVal";
+	private static final String ERROR = "speclang/AST$ProgramError";
+
+	private byte[] generate(Node.Closure f, ContractPolicy policy) throws ProgramError {
+		LambdaExp lambda = f.lambda();
+		if (!(lambda.type() instanceof FuncT) || !(lambda.spec() instanceof FuncSpec))
+			throw new Unsupported("Not a checked function");
+		FuncT type = (FuncT) lambda.type();
+		for (Type t : type.argTypes())
+			checkPrimitive(t);
+		checkPrimitive(type.returnType());
+
+		ClassFile cf = new ClassFile();
+		String body_desc = descriptor(type);
+
+		// static body(...): the function body over unboxed values
+		Method body = new Method(cf);
+		Frame formals = body.params(type.argTypes());
+		Emitter emitter = new Emitter(f, type, body, body_desc, policy);
+		emitter._scopes.add(formals);
+		Type result = lambda.body().accept(emitter, null);
+		if (result != type.returnType())
+			throw new Unsupported("Unexpected result type");
+		body.op(type.returnType() instanceof NumT ? 0xaf : 0xac, -size(result)); // dreturn, ireturn
+
+		// Value run(Value[] actuals): unbox, call body, box
+		Method run = new Method(cf);
+		run._locals = 2;
+		List<Type> argTypes = type.argTypes();
+		for (int i = 0; i < argTypes.size(); i++) {
+			run.op(0x2b, 1); // aload_1
+			run.iconst(i);
+			run.op(0x32, -1); // aaload
+			unbox(run, argTypes.get(i));
+		}
+		run.invoke(0xb8, CLASS, "body", body_desc, 0);
+		box(run, type.returnType());
+		run.op(0xb0, -1); // areturn
+
+		// <init>
+		Method init = new Method(cf);
+		init._locals = 1;
+		init.op(0x2a, 1); // aload_0
+		init.invoke(0xb7, "java/lang/Object", "<init>", "()V", 1);
+		init.op(0xb1, 0); // return
+
+		cf.method(0x0001, "<init>", "()V", init);
+		cf.method(0x0001, "run", "([L" + VALUE + ";)L" + VALUE + ";", run);
+		cf.method(0x0009, "body", body_desc, body);
+		return cf.bytes();
+	}
+
+	private static void checkPrimitive(Type t) throws Unsupported {
+		if (!(t instanceof NumT) && !(t instanceof BoolT))
+			throw new Unsupported("Only num and bool values are compiled");
+	}
+
+	private static int size(Type t) {
+		return t instanceof NumT ? 2 : 1;
+	}
+
+	private static String descriptor(FuncT type) {
+		StringBuilder sb = new StringBuilder("(");
+		for (Type t : type.argTypes())
+			sb.append(t instanceof NumT ? "D" : "Z");
+		sb.append(")");
+		sb.append(type.returnType() instanceof NumT ? "D" : "Z");
+		return sb.toString();
+	}
+
+	private static void unbox(Method m, Type t) {
+		if (t instanceof NumT) {
+			m.type(0xc0, NUMVAL, 0); // checkcast
+			m.invoke(0xb6, NUMVAL, "v", "()D", 1);
+		} else {
+			m.type(0xc0, BOOLVAL, 0);
+			m.invoke(0xb6, BOOLVAL, "v", "()Z", 0);
+		}
+	}
+
+	private static void box(Method m, Type t) {
+		if (t instanceof NumT)
+			m.invoke(0xb8, NUMVAL, "of", "(D)L" + NUMVAL + ";", 1 - 2);
+		else
+			m.invoke(0xb8, BOOLVAL, "of", "(Z)L" + BOOLVAL + ";", 0);
+	}
+
+	/**
+	 * JVM locals holding the values of one environment frame.
+	 */
+	private static class Frame {
+		final int[] _locals;
+		final Type[] _types;
+
+		Frame(int[] locals, Type[] types) {
+			_locals = locals;
+			_types = types;
+		}
+	}
+
+	/**
+	 * Emits the code of an expression and returns its type. Variables of the
+	 * frames in _scopes live in JVM locals; variables of the closure
+	 * environment and globals never change, so their values are constants.
+	 */
+	private class Emitter implements Visitor<Type, Void> {
+		final Node.Closure _self;
+		final FuncT _type;
+		final Method _m;
+		final String _desc;
+		final ContractPolicy _policy;
+		List<Frame> _scopes = new ArrayList<Frame>(); // innermost first
+
+		Emitter(Node.Closure self, FuncT type, Method m, String desc, ContractPolicy policy) {
+			_self = self;
+			_type = type;
+			_m = m;
+			_desc = desc;
+			_policy = policy;
+		}
+
+		private Type emit(Exp e) throws ProgramError {
+			return e.accept(this, null);
+		}
+
+		private void emit(Exp e, Type expected) throws ProgramError {
+			if (emit(e) != expected)
+				throw new Unsupported("Unexpected operand type");
+		}
+
+		private Value constant(VarExp e) throws ProgramError {
+			int depth = e.depth();
+			try {
+				if (depth >= 0)
+					return _self.env().get(depth - _scopes.size(), e.slot());
+				if (depth == VarExp.GLOBAL)
+					return _globals.get(e.slot());
+			} catch (Env.LookupException ex) {
+			}
+			throw new Unsupported("Unknown variable " + e.name());
+		}
+
+		public Type visit(VarExp e, Env<Void> env) throws ProgramError {
+			int depth = e.depth();
+			if (depth >= 0 && depth < _scopes.size()) {
+				Frame frame = _scopes.get(depth);
+				Type t = frame._types[e.slot()];
+				_m.load(t, frame._locals[e.slot()]);
+				return t;
+			}
+			Value value = constant(e);
+			if (value instanceof NumVal) {
+				_m.dconst(((NumVal) value).v());
+				return NumT.getInstance();
+			}
+			if (value instanceof BoolVal) {
+				_m.iconst(((BoolVal) value).v() ? 1 : 0);
+				return BoolT.getInstance();
+			}
+			throw new Unsupported("Variable " + e.name() + " is not a number or a boolean");
+		}
+
+		public Type visit(NumExp e, Env<Void> env) throws ProgramError {
+			_m.dconst(e.v());
+			return NumT.getInstance();
+		}
+
+		public Type visit(BoolExp e, Env<Void> env) throws ProgramError {
+			_m.iconst(e.v() ? 1 : 0);
+			return BoolT.getInstance();
+		}
+
+		public Type visit(AddExp e, Env<Void> env) throws ProgramError {
+			// The Evaluator accumulates sums in an int.
+			_m.iconst(0);
+			for (Exp operand : e.all()) {
+				_m.op(0x87, 1); // i2d
+				emit(operand, NumT.getInstance());
+				_m.op(0x63, -2); // dadd
+				_m.op(0x8e, -1); // d2i
+			}
+			_m.op(0x87, 1); // i2d
+			return NumT.getInstance();
+		}
+
+		private Type arith(CompoundArithExp e, int opcode) throws ProgramError {
+			List<Exp> operands = e.all();
+			emit(operands.get(0), NumT.getInstance());
+			for (int i = 1; i < operands.size(); i++) {
+				emit(operands.get(i), NumT.getInstance());
+				_m.op(opcode, -2);
+			}
+			return NumT.getInstance();
+		}
+
+		public Type visit(SubExp e, Env<Void> env) throws ProgramError {
+			return arith(e, 0x67); // dsub
+		}
+
+		public Type visit(DivExp e, Env<Void> env) throws ProgramError {
+			return arith(e, 0x6f); // ddiv
+		}
+
+		public Type visit(MultExp e, Env<Void> env) throws ProgramError {
+			// Multiplication starts from 1, as in the Evaluator.
+			_m.dconst(1);
+			for (Exp operand : e.all()) {
+				emit(operand, NumT.getInstance());
+				_m.op(0x6b, -2); // dmul
+			}
+			return NumT.getInstance();
+		}
+
+		/**
+		 * Pushes 1 if the comparison holds, 0 otherwise. cmp is dcmpg or dcmpl
+		 * so that comparisons with NaN are false, and branch jumps when the
+		 * comparison does not hold.
+		 */
+		private Type compare(BinaryComparator e, int cmp, int branch) throws ProgramError {
+			emit(e.first_exp(), NumT.getInstance());
+			emit(e.second_exp(), NumT.getInstance());
+			_m.op(cmp, -3);
+			Label no = new Label(), end = new Label();
+			_m.jump(branch, no, -1);
+			_m.iconst(1);
+			_m.jump(0xa7, end, 0); // goto
+			_m.mark(no, -1);
+			_m.iconst(0);
+			_m.mark(end, 0);
+			return BoolT.getInstance();
+		}
+
+		public Type visit(LessExp e, Env<Void> env) throws ProgramError {
+			return compare(e, 0x98, 0x9c); // dcmpg, ifge
+		}
+
+		public Type visit(LessEqExp e, Env<Void> env) throws ProgramError {
+			return compare(e, 0x98, 0x9d); // dcmpg, ifgt
+		}
+
+		public Type visit(EqualExp e, Env<Void> env) throws ProgramError {
+			return compare(e, 0x97, 0x9a); // dcmpl, ifne
+		}
+
+		public Type visit(GreaterExp e, Env<Void> env) throws ProgramError {
+			return compare(e, 0x97, 0x9e); // dcmpl, ifle
+		}
+
+		public Type visit(GreaterEqExp e, Env<Void> env) throws ProgramError {
+			return compare(e, 0x97, 0x9b); // dcmpl, iflt
+		}
+
+		public Type visit(IfExp e, Env<Void> env) throws ProgramError {
+			emit(e.conditional(), BoolT.getInstance());
+			Label no = new Label(), end = new Label();
+			_m.jump(0x99, no, -1); // ifeq
+			Type then_type = emit(e.then_exp());
+			_m.jump(0xa7, end, 0);
+			_m.mark(no, -size(then_type));
+			emit(e.else_exp(), then_type);
+			_m.mark(end, 0);
+			return then_type;
+		}
+
+		public Type visit(LetExp e, Env<Void> env) throws ProgramError {
+			List<Exp> value_exps = e.value_exps();
+			int[] locals = new int[value_exps.size()];
+			Type[] types = new Type[value_exps.size()];
+			for (int i = 0; i < locals.length; i++) {
+				types[i] = emit(value_exps.get(i));
+				locals[i] = _m.local(types[i]);
+				_m.store(types[i], locals[i]);
+			}
+			_scopes.add(0, new Frame(locals, types));
+			Type body_type = emit(e.body());
+			_scopes.remove(0);
+			return body_type;
+		}
+
+		/**
+		 * Only recursive calls of the function to itself are compiled.
+		 */
+		public Type visit(CallExp e, Env<Void> env) throws ProgramError {
+			if (!(e.operator() instanceof VarExp))
+				throw new Unsupported("Unknown operator");
+			VarExp operator = (VarExp) e.operator();
+			if (operator.depth() >= 0 && operator.depth() < _scopes.size() || constant(operator) != _self)
+				throw new Unsupported("Call to another function");
+
+			// Evaluate the actuals, in order, into the callee's frame.
+			List<Exp> operands = e.operands();
+			List<Type> argTypes = _type.argTypes();
+			if (operands.size() != argTypes.size())
+				throw new Unsupported("Argument mismatch");
+			int[] locals = new int[operands.size()];
+			for (int i = 0; i < locals.length; i++) {
+				emit(operands.get(i), argTypes.get(i));
+				locals[i] = _m.local(argTypes.get(i));
+				_m.store(argTypes.get(i), locals[i]);
+			}
+			Frame callee = new Frame(locals, argTypes.toArray(new Type[locals.length]));
+			Type rtype = _type.returnType();
+			int result = _m.local(rtype);
+			Frame result_frame = new Frame(new int[] { result }, new Type[] { rtype });
+
+			ContractPolicy policy = _policy.at(e);
+			if (policy == ContractPolicy.OFF) {
+				for (int i = 0; i < locals.length; i++)
+					_m.load(callee._types[i], locals[i]);
+				_m.invoke(0xb8, CLASS, "body", _desc, size(rtype) - frameSize(callee));
+				return rtype;
+			}
+			List<Frame> saved = _scopes;
+			List<SpecCase> speccases = ((FuncSpec) _self.lambda().spec()).speccases();
+			Label done = new Label(), post_failed = new Label();
+			for (SpecCase speccase : speccases) {
+				Label next = new Label();
+				_scopes = new ArrayList<Frame>(Arrays.asList(callee));
+				conditions(speccase.checkedPreconditions(), next);
+				for (int i = 0; i < locals.length; i++)
+					_m.load(callee._types[i], locals[i]);
+				_m.invoke(0xb8, CLASS, "body", _desc, size(rtype) - frameSize(callee));
+				_m.store(rtype, result);
+				if (policy == ContractPolicy.FULL) {
+					_scopes = new ArrayList<Frame>(Arrays.asList(result_frame, callee));
+					conditions(speccase.checkedPostconditions(), post_failed);
+				}
+				_m.jump(0xa7, done, 0);
+				_m.mark(next, 0);
+			}
+			_scopes = saved;
+			fail("Precondition violation in call:" + Node.format(e));
+			if (policy == ContractPolicy.FULL) {
+				_m.mark(post_failed, 0);
+				fail("Postcondition violation in call:" + Node.format(e));
+			}
+			_m.mark(done, 0);
+			_m.load(rtype, result);
+			return rtype;
+		}
+
+		private int frameSize(Frame frame) {
+			int size = 0;
+			for (Type t : frame._types)
+				size += size(t);
+			return size;
+		}
+
+		/**
+		 * Jumps to failed unless all conditions hold.
+		 */
+		private void conditions(List<Exp> conditions, Label failed) throws ProgramError {
+			for (Exp condition : conditions) {
+				if (condition instanceof BoolExp && ((BoolExp) condition).v())
+					continue;
+				emit(condition, BoolT.getInstance());
+				_m.jump(0x99, failed, -1); // ifeq
+			}
+		}
+
+		private void fail(String message) {
+			_m.type(0xbb, ERROR, 1); // new
+			_m.op(0x59, 1); // dup
+			_m.ldc(message);
+			_m.invoke(0xb7, ERROR, "<init>", "(Ljava/lang/String;)V", -2);
+			_m.op(0xbf, -1); // athrow
+		}
+
+		private Type unsupported(ASTNode n) throws ProgramError {
+			throw new Unsupported("Cannot compile " + Node.format(n));
+		}
+
+		public Type visit(Program p, Env<Void> env) throws ProgramError {
+			return unsupported(p);
+		}
+
+		public Type visit(UnitExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(StrExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(ErrorExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(DefineDecl d, Env<Void> env) throws ProgramError {
+			return unsupported(d);
+		}
+
+		public Type visit(ReadExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(EvalExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(PrimitiveExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(VectorExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(MakeVectorExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(VectorRefExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(VectorLengthExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(VectorSetExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(LambdaExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(LetrecExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(CarExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(CdrExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(ConsExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(ListExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(NullExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(IsNullExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(IsProcedureExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(IsListExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(IsPairExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(IsUnitExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(IsNumberExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(IsStringExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(IsBooleanExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(RefExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(DerefExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(AssignExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(FreeExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(SharedExp e, Env<Void> env) throws ProgramError {
+			return unsupported(e);
+		}
+
+		public Type visit(FuncSpec s, Env<Void> env) throws ProgramError {
+			return unsupported(s);
+		}
+
+		public Type visit(SpecCase s, Env<Void> env) throws ProgramError {
+			return unsupported(s);
+		}
+	}
+
+	/* A minimal class file writer: just what the Emitter needs. */
+
+	/**
+	 * The target of forward branches; all branches are forward.
+	 */
+	private static class Label {
+		List<Integer> _branches = new ArrayList<Integer>(); // offsets of branch opcodes
+	}
+
+	private static class Method {
+		final ClassFile _cf;
+		byte[] _code = new byte[64];
+		int _length = 0;
+		int _stack = 0;
+		int _max_stack = 0;
+		int _locals = 0;
+
+		Method(ClassFile cf) {
+			_cf = cf;
+		}
+
+		Frame params(List<Type> types) {
+			int[] locals = new int[types.size()];
+			for (int i = 0; i < locals.length; i++)
+				locals[i] = local(types.get(i));
+			return new Frame(locals, types.toArray(new Type[locals.length]));
+		}
+
+		int local(Type t) {
+			int local = _locals;
+			_locals += size(t);
+			return local;
+		}
+
+		private void u1(int b) {
+			if (_length == _code.length)
+				_code = Arrays.copyOf(_code, 2 * _length);
+			_code[_length++] = (byte) b;
+		}
+
+		private void u2(int v) {
+			u1(v >> 8);
+			u1(v);
+		}
+
+		/**
+		 * Emit an instruction without operands that changes the operand stack
+		 * by delta words.
+		 */
+		void op(int opcode, int delta) {
+			u1(opcode);
+			stack(delta);
+		}
+
+		private void stack(int delta) {
+			_stack += delta;
+			_max_stack = Math.max(_max_stack, _stack);
+		}
+
+		void iconst(int v) {
+			if (v >= -1 && v <= 5)
+				op(0x03 + v, 1); // iconst_<v>
+			else {
+				op(0x11, 1); // sipush
+				u2(v);
+			}
+		}
+
+		void dconst(double v) {
+			if (Double.doubleToRawLongBits(v) == 0L)
+				op(0x0e, 2); // dconst_0
+			else if (v == 1.0)
+				op(0x0f, 2); // dconst_1
+			else {
+				op(0x14, 2); // ldc2_w
+				u2(_cf.constant(v));
+			}
+		}
+
+		void ldc(String s) {
+			op(0x13, 1); // ldc_w
+			u2(_cf.string(s));
+		}
+
+		void load(Type t, int local) {
+			op(t instanceof NumT ? 0x18 : 0x15, size(t)); // dload, iload
+			u1(local);
+		}
+
+		void store(Type t, int local) {
+			op(t instanceof NumT ? 0x39 : 0x36, -size(t)); // dstore, istore
+			u1(local);
+		}
+
+		void type(int opcode, String cls, int delta) {
+			op(opcode, delta);
+			u2(_cf.cls(cls));
+		}
+
+		void invoke(int opcode, String owner, String name, String desc, int delta) {
+			op(opcode, delta);
+			u2(_cf.methodref(owner, name, desc));
+		}
+
+		void jump(int opcode, Label target, int delta) {
+			target._branches.add(_length);
+			op(opcode, delta);
+			u2(0);
+		}
+
+		/**
+		 * Place a label and patch the branches to it; delta adjusts the stack
+		 * depth when the code before the label does not fall through.
+		 */
+		void mark(Label label, int delta) {
+			for (int branch : label._branches) {
+				int offset = _length - branch;
+				_code[branch + 1] = (byte) (offset >> 8);
+				_code[branch + 2] = (byte) offset;
+			}
+			stack(delta);
+		}
+
+		byte[] code() throws Unsupported {
+			if (_length > 0x7fff || _locals > 0xff)
+				throw new Unsupported("Function too large");
+			return Arrays.copyOf(_code, _length);
+		}
+	}
+
+	private static class ClassFile {
+		private ByteArrayOutputStream _pool_bytes = new ByteArrayOutputStream();
+		private DataOutputStream _pool = new DataOutputStream(_pool_bytes);
+		private int _pool_count = 1;
+		private Map<String, Integer> _entries = new HashMap<String, Integer>();
+		private ByteArrayOutputStream _methods_bytes = new ByteArrayOutputStream();
+		private DataOutputStream _methods = new DataOutputStream(_methods_bytes);
+		private int _method_count = 0;
+
+		private int entry(String key, int tag, Object... operands) {
+			Integer index = _entries.get(key);
+			if (index != null)
+				return index;
+			try {
+				_pool.writeByte(tag);
+				for (Object operand : operands) {
+					if (operand instanceof String)
+						_pool.writeUTF((String) operand);
+					else if (operand instanceof Long)
+						_pool.writeLong((Long) operand);
+					else
+						_pool.writeShort((Integer) operand);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			index = _pool_count;
+			_pool_count += tag == 6 ? 2 : 1; // doubles take two entries
+			_entries.put(key, index);
+			return index;
+		}
+
+		int utf8(String s) {
+			return entry("U" + s, 1, s);
+		}
+
+		int cls(String name) {
+			return entry("C" + name, 7, utf8(name));
+		}
+
+		int string(String s) {
+			return entry("S" + s, 8, utf8(s));
+		}
+
+		int constant(double d) {
+			long bits = Double.doubleToRawLongBits(d);
+			return entry("D" + bits, 6, bits);
+		}
+
+		int methodref(String owner, String name, String desc) {
+			int nat = entry("N" + name + desc, 12, utf8(name), utf8(desc));
+			return entry("M" + owner + "." + name + desc, 10, cls(owner), nat);
+		}
+
+		void method(int access, String name, String desc, Method m) throws Unsupported {
+			byte[] code = m.code();
+			try {
+				_methods.writeShort(access);
+				_methods.writeShort(utf8(name));
+				_methods.writeShort(utf8(desc));
+				_methods.writeShort(1); // attributes
+				_methods.writeShort(utf8("Code"));
+				_methods.writeInt(12 + code.length);
+				_methods.writeShort(m._max_stack);
+				_methods.writeShort(m._locals);
+				_methods.writeInt(code.length);
+				_methods.write(code);
+				_methods.writeShort(0); // exception table
+				_methods.writeShort(0); // attributes
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			_method_count++;
+		}
+
+		byte[] bytes() {
+			int this_class = cls(CLASS);
+			int super_class = cls("java/lang/Object");
+			int code_interface = cls(CODE);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.writeInt(0xCAFEBABE);
+				out.writeShort(0);
+				out.writeShort(49); // No stack map frames needed before Java 6
+				out.writeShort(_pool_count);
+				out.write(_pool_bytes.toByteArray());
+				out.writeShort(0x0031); // public final super
+				out.writeShort(this_class);
+				out.writeShort(super_class);
+				out.writeShort(1);
+				out.writeShort(code_interface);
+				out.writeShort(0); // fields
+				out.writeShort(_method_count);
+				out.write(_methods_bytes.toByteArray());
+				out.writeShort(0); // attributes
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -12,9 +12,19 @@ import speclang.Type.*;
 public class Checker implements Visitor<Type, Type> {
 	Printer.Formatter ts = new Printer.Formatter();
 	PurityChecker pc = new PurityChecker();  //New for SpecLang
+	Prover prover = null;
 
 	Type check(Program p) throws ProgramError {
-		return (Type) p.accept(this, null);
+		return (Type) p.accept(this, Primitives.types());
+	}
+
+	/**
+	 * Discharge the spec cases that prover can prove, so that they are not
+	 * checked at runtime.
+	 */
+	Checker discharge(Prover p) {
+		prover = p;
+		return this;
 	}
 
 	public Type visit(Program p, Env<Type> env) throws ProgramError {
@@ -112,11 +122,15 @@ public class Checker implements Visitor<Type, Type> {
 			if (specType instanceof ErrorT) {
 				return specType;
 			}
+			if (prover != null)
+				prover.discharge(e, new_env, spec_env);
 
 			// create a new function type with arguments, and the type of
 			// the body as the return type. Notice, that the body type isn't
 			// given in any type annotation, but being computed here.
-			return new FuncT(types, bodyType);
+			FuncT type = new FuncT(types, bodyType);
+			e.setType(type);
+			return type;
 		}
 
 		return new ErrorT(message + ts.visit(e, null));
@@ -379,6 +393,116 @@ public class Checker implements Visitor<Type, Type> {
 				+ ts.visit(e, null));
 	}
 
+	public Type visit(VectorExp e, Env<Type> env) throws ProgramError {
+		List<Exp> elems = e.elems();
+		Type type = e.type();
+
+		int index = 0;
+		for (Exp elem : elems) {
+			Type elemType = (Type) elem.accept(this, env);
+			if (elemType instanceof ErrorT) {
+				return elemType;
+			}
+
+			if (!assignable(type, elemType)) {
+				return new ErrorT("The " + index + " expression should have type " + type.tostring() + " found "
+						+ elemType.tostring() + " in " + ts.visit(e, null));
+			}
+			index++;
+		}
+		return new VecT(type);
+	}
+
+	public Type visit(MakeVectorExp e, Env<Type> env) throws ProgramError {
+		Type sizeType = (Type) e.size().accept(this, env);
+		if (sizeType instanceof ErrorT) {
+			return sizeType;
+		}
+
+		if (!(sizeType instanceof NumT)) {
+			return new ErrorT("The size of a vector should have type num, found " + sizeType.tostring() + " in "
+					+ ts.visit(e, null));
+		}
+
+		Type initType = (Type) e.init().accept(this, env);
+		if (initType instanceof ErrorT) {
+			return initType;
+		}
+		return new VecT(initType);
+	}
+
+	public Type visit(VectorRefExp e, Env<Type> env) throws ProgramError {
+		Type type = vector(e.vec(), e.index(), e, env);
+		if (type instanceof ErrorT) {
+			return type;
+		}
+		return ((VecT) type).elemType();
+	}
+
+	public Type visit(VectorLengthExp e, Env<Type> env) throws ProgramError {
+		Type type = (Type) e.vec().accept(this, env);
+		if (type instanceof ErrorT) {
+			return type;
+		}
+
+		if (type instanceof VecT) {
+			return NumT.getInstance();
+		}
+
+		return new ErrorT("The vector-length expects an expression of type Vec, found " + type.tostring() + " in "
+				+ ts.visit(e, null));
+	}
+
+	public Type visit(VectorSetExp e, Env<Type> env) throws ProgramError {
+		Type type = vector(e.vec(), e.index(), e, env);
+		if (type instanceof ErrorT) {
+			return type;
+		}
+
+		Type valueType = (Type) e.value_exp().accept(this, env);
+		if (valueType instanceof ErrorT) {
+			return valueType;
+		}
+
+		Type elemType = ((VecT) type).elemType();
+		if (assignable(elemType, valueType)) {
+			return elemType;
+		}
+
+		return new ErrorT("The vector-set! expects a value of type " + elemType.tostring() + " found "
+				+ valueType.tostring() + " in " + ts.visit(e, null));
+	}
+
+	/**
+	 * @return the type of vec, if it is a vector and index a number.
+	 */
+	private Type vector(Exp vec, Exp index, Exp e, Env<Type> env) throws ProgramError {
+		Type type = (Type) vec.accept(this, env);
+		if (type instanceof ErrorT) {
+			return type;
+		}
+
+		if (!(type instanceof VecT)) {
+			return new ErrorT("Expected an expression of type Vec, found " + type.tostring() + " in "
+					+ e.accept(ts, null));
+		}
+
+		Type indexType = (Type) index.accept(this, env);
+		if (indexType instanceof ErrorT) {
+			return indexType;
+		}
+
+		if (!(indexType instanceof NumT)) {
+			return new ErrorT("The index of a vector should have type num, found " + indexType.tostring() + " in "
+					+ e.accept(ts, null));
+		}
+		return type;
+	}
+
+	public Type visit(SharedExp e, Env<Type> env) throws ProgramError {
+		return (Type) e.exp().accept(this, env);
+	}
+
 	public Type visit(UnitExp e, Env<Type> env) throws ProgramError {
 		return Type.UnitT.getInstance();
 	}
@@ -496,6 +620,10 @@ public class Checker implements Visitor<Type, Type> {
 		return UnitT.getInstance();
 	}
 
+	public Type visit(PrimitiveExp e, Env<Type> env) throws ProgramError {
+		return e.primitive().type().returnType();
+	}
+
 	@Override
 	public Type visit(IsNullExp e, Env<Type> env) throws ProgramError {
 		Type exp_type = (Type) e.exp().accept(this, env);
@@ -0,0 +1,679 @@
+package speclang;
+
+import static speclang.AST.*;
+import static speclang.Heap.*;
+import static speclang.Value.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import speclang.Env.*;
+
+/**
+ * An evaluator that keeps its control stack on the heap. Instead of
+ * recursing on the Java stack, each compound expression pushes a
+ * continuation describing the rest of its work and hands a subexpression to
+ * a loop, which passes the value of the subexpression to the continuation
+ * on top of the stack. Recursion depth is therefore bounded by a maximum
+ * number of pending continuations rather than by the Java thread stack, and
+ * exceeding it is a ProgramError.
+ *
+ * The results and error messages are the same as the Evaluator's. Calls in
+ * tail position, and calls whose postconditions are all #t, do not leave a
+ * continuation behind, so they run in constant space.
+ *
+ * @author hridesh
+ *
+ */
+public class ContinuationEvaluator extends Evaluator {
+	static final int DEFAULT_MAX_DEPTH = 1000000;
+
+	/**
+	 * The rest of a computation that waits for a value. It either returns a
+	 * value, or schedules an expression and returns null.
+	 */
+	interface Kont {
+		Value resume(Value v) throws ProgramError;
+	}
+
+	private final int _maxDepth;
+	private Kont[] _stack = new Kont[64];
+	private int _depth = 0;
+
+	// The expression to evaluate next, or null when _val is being returned.
+	private ASTNode _exp = null;
+	private Env<Value> _env = null;
+	private Value _val = null;
+
+	public ContinuationEvaluator(Reader reader, int maxDepth) {
+		super(reader);
+		_maxDepth = maxDepth;
+	}
+
+	@Override
+	Value valueOf(Program p) throws ProgramError {
+		heap = new Heap16Bit();
+		return run(p, initEnv);
+	}
+
+	private Value run(ASTNode n, Env<Value> env) throws ProgramError {
+		schedule(n, env);
+		try {
+			while (true) {
+				if (_exp != null) {
+					ASTNode exp = _exp;
+					_exp = null;
+					Value v = exp.accept(this, _env);
+					if (_exp == null)
+						_val = v;
+				} else if (_depth == 0)
+					return _val;
+				else {
+					Kont k = _stack[--_depth];
+					_stack[_depth] = null;
+					Value v = k.resume(_val);
+					if (_exp == null)
+						_val = v;
+				}
+			}
+		} finally {
+			Arrays.fill(_stack, 0, _depth, null);
+			_depth = 0;
+			_exp = null;
+			_env = null;
+			_val = null;
+		}
+	}
+
+	/**
+	 * Calls f for a primitive in a loop of its own, on a fresh stack. The
+	 * loop of the caller resumes, with its stack, once the call returns.
+	 */
+	@Override
+	Value callback(CallExp origin, Value f, Value... args) throws ProgramError {
+		Kont[] stack = _stack;
+		int depth = _depth;
+		_stack = new Kont[64];
+		_depth = 0;
+		try {
+			return run(Primitives.site(args, origin), Primitives.frame(initEnv, f, args));
+		} finally {
+			_stack = stack;
+			_depth = depth;
+		}
+	}
+
+	/**
+	 * Evaluate n in env next; the caller returns the null this returns.
+	 */
+	private Value schedule(ASTNode n, Env<Value> env) {
+		_exp = n;
+		_env = env;
+		return null;
+	}
+
+	private void push(Kont k) throws ProgramError {
+		if (_depth == _maxDepth)
+			throw new ProgramError("Maximum recursion depth of " + _maxDepth + " exceeded");
+		if (_depth == _stack.length)
+			_stack = Arrays.copyOf(_stack, (int) Math.min(2L * _depth, _maxDepth));
+		_stack[_depth++] = k;
+	}
+
+	/**
+	 * Evaluate e in env, then pass its value to k.
+	 */
+	private Value then(Exp e, Env<Value> env, Kont k) throws ProgramError {
+		push(k);
+		return schedule(e, env);
+	}
+
+	/**
+	 * Evaluates expressions from left to right, passing each value to step.
+	 */
+	private abstract class Sequence implements Kont {
+		private final int _size;
+		private final Env<Value> _seq_env;
+		private int _index = 0;
+
+		Sequence(int size, Env<Value> env) {
+			_size = size;
+			_seq_env = env;
+		}
+
+		abstract Exp exp(int index);
+
+		abstract void step(int index, Value v) throws ProgramError;
+
+		abstract Value done() throws ProgramError;
+
+		Value start() throws ProgramError {
+			if (_size == 0)
+				return done();
+			return then(exp(0), _seq_env, this);
+		}
+
+		public Value resume(Value v) throws ProgramError {
+			step(_index++, v);
+			if (_index < _size)
+				return then(exp(_index), _seq_env, this);
+			return done();
+		}
+	}
+
+	/**
+	 * A sequence over a list of expressions.
+	 */
+	private abstract class ListSequence extends Sequence {
+		private final List<? extends Exp> _exps;
+
+		ListSequence(List<? extends Exp> exps, Env<Value> env) {
+			super(exps.size(), env);
+			_exps = exps;
+		}
+
+		Exp exp(int index) {
+			return _exps.get(index);
+		}
+	}
+
+	@Override
+	public Value visit(Program p, Env<Value> env) throws ProgramError {
+		List<DefineDecl> decls = p.decls();
+		return new Sequence(decls.size() + 1, initEnv) {
+			Value _last = null;
+
+			Exp exp(int index) {
+				return index < decls.size() ? decls.get(index) : p.e();
+			}
+
+			void step(int index, Value v) {
+				_last = v;
+			}
+
+			Value done() {
+				return _last;
+			}
+		}.start();
+	}
+
+	@Override
+	public Value visit(DefineDecl e, Env<Value> env) throws ProgramError {
+		return then(e.value_exp(), env, value -> {
+			int slot = e.slot();
+			if (slot < 0) // Not resolved
+				slot = initEnv.define(e.name());
+			initEnv.set(slot, withPolicy(e.name(), value));
+			return UnitVal.v;
+		});
+	}
+
+	@Override
+	public Value visit(AddExp e, Env<Value> env) throws ProgramError {
+		return new ListSequence(e.all(), env) {
+			int _result = 0;
+
+			void step(int index, Value v) {
+				_result += ((NumVal) v).v();
+			}
+
+			Value done() {
+				return NumVal.of(_result);
+			}
+		}.start();
+	}
+
+	@Override
+	public Value visit(SubExp e, Env<Value> env) throws ProgramError {
+		return new ListSequence(e.all(), env) {
+			double _result;
+
+			void step(int index, Value v) {
+				_result = index == 0 ? ((NumVal) v).v() : _result - ((NumVal) v).v();
+			}
+
+			Value done() {
+				return NumVal.of(_result);
+			}
+		}.start();
+	}
+
+	@Override
+	public Value visit(MultExp e, Env<Value> env) throws ProgramError {
+		return new ListSequence(e.all(), env) {
+			double _result = 1;
+
+			void step(int index, Value v) {
+				_result *= ((NumVal) v).v();
+			}
+
+			Value done() {
+				return NumVal.of(_result);
+			}
+		}.start();
+	}
+
+	@Override
+	public Value visit(DivExp e, Env<Value> env) throws ProgramError {
+		return new ListSequence(e.all(), env) {
+			double _result;
+
+			void step(int index, Value v) {
+				_result = index == 0 ? ((NumVal) v).v() : _result / ((NumVal) v).v();
+			}
+
+			Value done() {
+				return NumVal.of(_result);
+			}
+		}.start();
+	}
+
+	private interface Test {
+		boolean test(double first, double second);
+	}
+
+	private Value compare(BinaryComparator e, Env<Value> env, Test test) throws ProgramError {
+		return then(e.first_exp(), env, first -> {
+			NumVal lVal = (NumVal) first;
+			return then(e.second_exp(), env, second -> BoolVal.of(test.test(lVal.v(), ((NumVal) second).v())));
+		});
+	}
+
+	@Override
+	public Value visit(LessExp e, Env<Value> env) throws ProgramError {
+		return compare(e, env, (first, second) -> first < second);
+	}
+
+	@Override
+	public Value visit(LessEqExp e, Env<Value> env) throws ProgramError {
+		return compare(e, env, (first, second) -> first <= second);
+	}
+
+	@Override
+	public Value visit(EqualExp e, Env<Value> env) throws ProgramError {
+		return compare(e, env, (first, second) -> first == second);
+	}
+
+	@Override
+	public Value visit(GreaterExp e, Env<Value> env) throws ProgramError {
+		return compare(e, env, (first, second) -> first > second);
+	}
+
+	@Override
+	public Value visit(GreaterEqExp e, Env<Value> env) throws ProgramError {
+		return compare(e, env, (first, second) -> first >= second);
+	}
+
+	@Override
+	public Value visit(IfExp e, Env<Value> env) throws ProgramError {
+		return then(e.conditional(), env, result -> {
+			if (!(result instanceof BoolVal))
+				throw new ProgramError("Condition not a boolean in expression " + ts.visit(e, null));
+			// The branch replaces the if, so it is in tail position.
+			return schedule(((BoolVal) result).v() ? e.then_exp() : e.else_exp(), env);
+		});
+	}
+
+	@Override
+	public Value visit(LetExp e, Env<Value> env) throws ProgramError {
+		Value[] values = new Value[e.value_exps().size()];
+		return new ListSequence(e.value_exps(), env) {
+			void step(int index, Value v) {
+				values[index] = v;
+			}
+
+			Value done() {
+				return schedule(e.body(), new ExtendEnvFrame<>(env, e.names(), values));
+			}
+		}.start();
+	}
+
+	@Override
+	public Value visit(LetrecExp e, Env<Value> env) throws ProgramError {
+		// The functions close over the environment that binds them.
+		ExtendEnvRec new_env = new ExtendEnvRec(env, e.names());
+		return new ListSequence(e.fun_exps(), new_env) {
+			void step(int index, Value v) {
+				new_env.bind(index, (FunVal) v);
+			}
+
+			Value done() {
+				return schedule(e.body(), new_env);
+			}
+		}.start();
+	}
+
+	@Override
+	public Value visit(CallExp e, Env<Value> env) throws ProgramError {
+		List<Exp> operands = e.operands();
+		Value[] actuals = new Value[operands.size()];
+		return new Sequence(actuals.length + 1, env) {
+			FunVal _operator;
+
+			Exp exp(int index) {
+				return index == 0 ? e.operator() : operands.get(index - 1);
+			}
+
+			void step(int index, Value v) throws ProgramError {
+				if (index > 0)
+					actuals[index - 1] = v;
+				else if (v instanceof FunVal)
+					_operator = (FunVal) v;
+				else
+					throw new ProgramError("Operator not a function in call" + ts.visit(e, null));
+			}
+
+			Value done() throws ProgramError {
+				if (_operator.formals().size() != actuals.length)
+					throw new ProgramError("Argument mismatch in call" + ts.visit(e, null));
+				// Calls in tail position stay in constant space, so their
+				// results are not remembered, nor looked up.
+				Memoizer.Table memo = e.isTail() ? null : _operator.memo();
+				if (memo != null) {
+					ContractPolicy checks = policy(_operator).at(e);
+					Value cached = memo.get(actuals, checks);
+					if (cached != null)
+						return cached;
+					push(result -> {
+						memo.put(actuals, result, checks);
+						return result;
+					});
+				}
+				Env<Value> fun_env = new ExtendEnvFrame<>(_operator.env(), _operator.formals(), actuals);
+				return new Call(e, _operator, fun_env).start();
+			}
+		}.start();
+	}
+
+	/**
+	 * A call whose frame is built: checks the preconditions of the spec
+	 * cases in order, runs the body with the first case that holds, and
+	 * checks the postconditions of that case on the result, as far as the
+	 * contract policy asks.
+	 */
+	private class Call implements Kont {
+		private final CallExp _e;
+		private final FunVal _operator;
+		private final Env<Value> _fun_env;
+		private final Env<Value> _spec_env;
+		private final ContractPolicy _policy;
+		private final List<SpecCase> _speccases;
+		private int _case = 0;
+		private int _condition = 0;
+
+		Call(CallExp e, FunVal operator, Env<Value> fun_env) {
+			_e = e;
+			_operator = operator;
+			_fun_env = fun_env;
+			_policy = policy(operator).at(e);
+			if (_policy == ContractPolicy.OFF) {
+				_spec_env = fun_env;
+				_speccases = null;
+			} else {
+				_spec_env = specEnv((FuncSpec) operator.spec(), fun_env);
+				_speccases = ((FuncSpec) operator.spec()).speccases();
+			}
+		}
+
+		/**
+		 * Evaluate the next precondition, or the body if all the
+		 * preconditions of the current spec case have held.
+		 */
+		Value start() throws ProgramError {
+			if (_policy == ContractPolicy.OFF)
+				return body();
+			if (_case == _speccases.size()) // No precondition holds
+				throw new ProgramError("Precondition violation in call:" + ts.visit(_e, null));
+			SpecCase speccase = _speccases.get(_case);
+			List<Exp> preconditions = speccase.checkedPreconditions();
+			if (_condition < preconditions.size())
+				return then(preconditions.get(_condition), _spec_env, this);
+			if (_policy == ContractPolicy.FULL && !trivial(speccase))
+				push(new Post(_e, speccase, _spec_env));
+			return body();
+		}
+
+		/**
+		 * Evaluate the body. A primitive is applied at once, and the calls
+		 * it makes are reported as _e.
+		 */
+		private Value body() throws ProgramError {
+			if (_operator.body() instanceof PrimitiveExp)
+				return primitive((PrimitiveExp) _operator.body(), _fun_env, _e);
+			return schedule(_operator.body(), _fun_env);
+		}
+
+		public Value resume(Value v) throws ProgramError {
+			if (!(v instanceof BoolVal))
+				throw new ProgramError("Condition not a boolean in expression" + ts.visit(_speccases.get(_case), null));
+			if (((BoolVal) v).v())
+				_condition++;
+			else {
+				_case++;
+				_condition = 0;
+			}
+			return start();
+		}
+	}
+
+	/**
+	 * Checks the postconditions of a spec case on the result of a call.
+	 */
+	private class Post implements Kont {
+		private final CallExp _e;
+		private final SpecCase _speccase;
+		private final Env<Value> _spec_env;
+		private Env<Value> _post_env = null;
+		private Value _fresult;
+		private int _condition = 0;
+
+		Post(CallExp e, SpecCase speccase, Env<Value> spec_env) {
+			_e = e;
+			_speccase = speccase;
+			_spec_env = spec_env;
+		}
+
+		public Value resume(Value v) throws ProgramError {
+			if (_post_env == null) { // v is the result of the function
+				_fresult = v;
+				_post_env = new ExtendEnv<>(_spec_env, "result", v);
+			} else {
+				if (!(v instanceof BoolVal))
+					throw new ProgramError("Condition not a boolean in expression" + ts.visit(_speccase, null));
+				if (!((BoolVal) v).v())
+					throw new ProgramError("Postcondition violation in call:" + ts.visit(_e, null));
+				_condition++;
+			}
+			List<Exp> postconditions = _speccase.checkedPostconditions();
+			if (_condition < postconditions.size())
+				return then(postconditions.get(_condition), _post_env, this);
+			return _fresult;
+		}
+	}
+
+	@Override
+	public Value visit(SharedExp e, Env<Value> env) throws ProgramError {
+		MemoEnv<Value> memo = MemoEnv.of(env);
+		Value value = memo.memo(e.index());
+		if (value != null)
+			return value;
+		return then(e.exp(), memo, v -> {
+			memo.memo(e.index(), v);
+			return v;
+		});
+	}
+
+	/**
+	 * @return true if the postconditions are all #t.
+	 */
+	private static boolean trivial(SpecCase speccase) {
+		for (Exp postcondition : speccase.checkedPostconditions())
+			if (!(postcondition instanceof BoolExp) || !((BoolExp) postcondition).v())
+				return false;
+		return true;
+	}
+
+	@Override
+	public Value visit(CarExp e, Env<Value> env) throws ProgramError {
+		return then(e.arg(), env, pair -> ((PairVal) pair).fst());
+	}
+
+	@Override
+	public Value visit(CdrExp e, Env<Value> env) throws ProgramError {
+		return then(e.arg(), env, pair -> ((PairVal) pair).snd());
+	}
+
+	@Override
+	public Value visit(ConsExp e, Env<Value> env) throws ProgramError {
+		return then(e.fst(), env, first -> then(e.snd(), env, second -> new PairVal(first, second)));
+	}
+
+	@Override
+	public Value visit(ListExp e, Env<Value> env) throws ProgramError {
+		List<Exp> elemExps = e.elems();
+		if (elemExps.size() == 0)
+			return Null.v;
+		// Order of evaluation: left to right e.g. (list (+ 3 4) (+ 5 4))
+		Value[] elems = new Value[elemExps.size()];
+		return new ListSequence(elemExps, env) {
+			void step(int index, Value v) {
+				elems[index] = v;
+			}
+
+			Value done() {
+				return ListVal.of(elems);
+			}
+		}.start();
+	}
+
+	@Override
+	public Value visit(NullExp e, Env<Value> env) throws ProgramError {
+		return then(e.arg(), env, val -> BoolVal.of(val instanceof Null));
+	}
+
+	@Override
+	public Value visit(IsNullExp e, Env<Value> env) throws ProgramError {
+		return then(e.exp(), env, val -> BoolVal.of(val instanceof Null));
+	}
+
+	@Override
+	public Value visit(IsListExp e, Env<Value> env) throws ProgramError {
+		return then(e.exp(), env,
+				val -> BoolVal.of(val instanceof PairVal && ((PairVal) val).isList() || val instanceof Null));
+	}
+
+	@Override
+	public Value visit(IsPairExp e, Env<Value> env) throws ProgramError {
+		return then(e.exp(), env, val -> BoolVal.of(val instanceof PairVal));
+	}
+
+	@Override
+	public Value visit(IsUnitExp e, Env<Value> env) throws ProgramError {
+		return then(e.exp(), env, val -> BoolVal.of(val instanceof UnitVal));
+	}
+
+	@Override
+	public Value visit(IsProcedureExp e, Env<Value> env) throws ProgramError {
+		return then(e.exp(), env, val -> BoolVal.of(val instanceof FunVal));
+	}
+
+	@Override
+	public Value visit(IsStringExp e, Env<Value> env) throws ProgramError {
+		return then(e.exp(), env, val -> BoolVal.of(val instanceof StringVal));
+	}
+
+	@Override
+	public Value visit(IsNumberExp e, Env<Value> env) throws ProgramError {
+		return then(e.exp(), env, val -> BoolVal.of(val instanceof NumVal));
+	}
+
+	@Override
+	public Value visit(IsBooleanExp e, Env<Value> env) throws ProgramError {
+		return then(e.exp(), env, val -> BoolVal.of(val instanceof BoolVal));
+	}
+
+	@Override
+	public Value visit(RefExp e, Env<Value> env) throws ProgramError {
+		return then(e.value_exp(), env, value -> heap.ref(value));
+	}
+
+	@Override
+	public Value visit(DerefExp e, Env<Value> env) throws ProgramError {
+		return then(e.loc_exp(), env, loc -> heap.deref((RefVal) loc));
+	}
+
+	@Override
+	public Value visit(AssignExp e, Env<Value> env) throws ProgramError {
+		// Note the order of evaluation below.
+		return then(e.rhs_exp(), env,
+				rhs_val -> then(e.lhs_exp(), env, loc -> heap.setref((RefVal) loc, rhs_val)));
+	}
+
+	@Override
+	public Value visit(FreeExp e, Env<Value> env) throws ProgramError {
+		return then(e.value_exp(), env, loc -> {
+			heap.free((RefVal) loc);
+			return UnitVal.v;
+		});
+	}
+
+	@Override
+	public Value visit(VectorExp e, Env<Value> env) throws ProgramError {
+		List<Exp> elemExps = e.elems();
+		Value[] elems = new Value[elemExps.size()];
+		return new ListSequence(elemExps, env) {
+			void step(int index, Value v) {
+				elems[index] = v;
+			}
+
+			Value done() {
+				return VectorVal.of(elems);
+			}
+		}.start();
+	}
+
+	@Override
+	public Value visit(MakeVectorExp e, Env<Value> env) throws ProgramError {
+		return then(e.size(), env, size -> then(e.init(), env, init -> VectorVal.make(size, init)));
+	}
+
+	@Override
+	public Value visit(VectorRefExp e, Env<Value> env) throws ProgramError {
+		return then(e.vec(), env, vec -> then(e.index(), env, index -> ((VectorVal) vec).get(index)));
+	}
+
+	@Override
+	public Value visit(VectorLengthExp e, Env<Value> env) throws ProgramError {
+		return then(e.vec(), env, vec -> NumVal.of(((VectorVal) vec).length()));
+	}
+
+	@Override
+	public Value visit(VectorSetExp e, Env<Value> env) throws ProgramError {
+		return then(e.vec(), env, vec -> then(e.index(), env,
+				index -> then(e.value_exp(), env, value -> ((VectorVal) vec).set(index, value))));
+	}
+
+	@Override
+	public Value visit(EvalExp e, Env<Value> env) throws ProgramError {
+		return then(e.code(), env, programText -> {
+			Program p = _reader.parse(((StringVal) programText).v());
+			resolver().resolve(p);
+			return schedule(p, env);
+		});
+	}
+
+	@Override
+	public Value visit(ReadExp e, Env<Value> env) throws ProgramError {
+		return then(e.file(), env, fileName -> {
+			try {
+				String text = Reader.readFile(
+						"" + System.getProperty("user.dir") + File.separator + ((StringVal) fileName).v());
+				return new StringVal(text);
+			} catch (IOException ex) {
+				throw new ProgramError(ex.getMessage());
+			}
+		});
+	}
+}
@@ -0,0 +1,41 @@
+package speclang;
+
+/**
+ * How much of the specification of a function is checked when the function
+ * is called. Checking is on by default; lighter policies trade the checks
+ * for speed. When checks are made, violations are reported as usual.
+ *
+ * @author hridesh
+ *
+ */
+public enum ContractPolicy {
+	OFF, // The body is run without checking the specification
+	PRE, // Preconditions are checked, postconditions are not
+	FULL, // Preconditions and postconditions are checked
+	BOUNDARY; // As FULL when called from outside the recursive group, else OFF
+
+	/**
+	 * @return the checks to make for call e under this policy.
+	 */
+	ContractPolicy at(AST.CallExp e) {
+		if (this != BOUNDARY)
+			return this;
+		return e.isRecursive() ? OFF : FULL;
+	}
+
+	/**
+	 * @return true if the checks made under this policy include those made
+	 *         under checks. Both are the checks of a call, so not BOUNDARY.
+	 */
+	boolean covers(ContractPolicy checks) {
+		return ordinal() >= checks.ordinal();
+	}
+
+	/**
+	 * @return the policy named by s, which is off, pre, full or boundary.
+	 * @throws IllegalArgumentException if s names none of them.
+	 */
+	static ContractPolicy parse(String s) {
+		return valueOf(s.toUpperCase());
+	}
+}
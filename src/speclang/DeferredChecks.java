@@ -0,0 +1,111 @@
+package speclang;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import speclang.AST.*;
+
+/**
+ * Postcondition checks that the Evaluator hands to a background thread
+ * instead of making before a call returns. Only the checks of spec cases
+ * whose postconditions are stateless are deferred: they neither have
+ * effects nor read references or vectors, and neither do the functions
+ * they call. Otherwise the caller could change what a check reads before
+ * the check is made.
+ *
+ * The checks are made in the order they were deferred. Their outcomes are
+ * collected at a synchronization point: the end of the program, or after
+ * a given number of deferred checks. There the first violation, or error,
+ * is reported as if the check had failed at that point.
+ *
+ * @author hridesh
+ *
+ */
+public class DeferredChecks {
+	static final int DEFAULT_BACKLOG = 1024;
+	static final long STACK_SIZE = 1L << 27; // Room for checks as deep as the caller's
+
+	private final int _backlog;
+	private final ExecutorService _executor;
+	private final Thread _owner = Thread.currentThread();
+	private final ArrayDeque<Future<String>> _pending = new ArrayDeque<Future<String>>();
+	private final Map<SpecCase, Boolean> _pure = new IdentityHashMap<SpecCase, Boolean>();
+	private final PurityChecker.Stateless _checker = new PurityChecker.Stateless();
+
+	/**
+	 * @param backlog the number of deferred checks after which the
+	 *        evaluator waits for their outcomes.
+	 */
+	public DeferredChecks(int backlog) {
+		_backlog = backlog;
+		_executor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(null, r, "postconditions", STACK_SIZE);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * @return true if the postconditions of post may be checked later, as
+	 *         they are stateless. Only the checks of calls made on the
+	 *         thread that created this are deferred, so not those that
+	 *         deferred checks make.
+	 */
+	boolean defers(SpecCase post) throws ProgramError {
+		if (Thread.currentThread() != _owner)
+			return false;
+		Boolean pure = _pure.get(post);
+		if (pure == null) {
+			pure = true;
+			for (Exp postcondition : post.checkedPostconditions())
+				pure = pure && (Boolean) postcondition.accept(_checker, null);
+			_pure.put(post, pure);
+		}
+		return pure;
+	}
+
+	/**
+	 * Defers check, which returns the message of a violation or null.
+	 */
+	void defer(Callable<String> check) throws ProgramError {
+		_pending.add(_executor.submit(check));
+		if (_pending.size() >= _backlog)
+			sync();
+	}
+
+	/**
+	 * Waits for the deferred checks, and reports the first that failed.
+	 */
+	void sync() throws ProgramError {
+		Throwable first = null;
+		int failed = 0;
+		while (!_pending.isEmpty()) {
+			Throwable failure;
+			try {
+				String violation = _pending.poll().get();
+				failure = violation == null ? null : new ProgramError(violation);
+			} catch (ExecutionException e) {
+				failure = e.getCause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = new ProgramError("Interrupted while checking postconditions");
+			}
+			if (failure != null && failed++ == 0)
+				first = failure;
+		}
+		if (first instanceof ProgramError && failed > 1)
+			throw new ProgramError(first.getMessage() + " (and " + (failed - 1) + " more failed checks)");
+		if (first instanceof ProgramError)
+			throw (ProgramError) first;
+		if (first instanceof RuntimeException)
+			throw (RuntimeException) first;
+		if (first instanceof Error)
+			throw (Error) first;
+	}
+}
@@ -1,6 +1,10 @@
 package speclang;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import speclang.Value.*;
 
@@ -14,6 +18,12 @@ import speclang.Value.*;
 public interface Env<T> {
 	T get(String search_var);
 
+	/**
+	 * Lookup by lexical address: skip depth bindings, then take the slot-th
+	 * value of the binding reached. Addresses are computed by the Resolver.
+	 */
+	T get(int depth, int slot);
+
 	boolean isEmpty();
 
 	@SuppressWarnings("serial")
@@ -28,11 +38,68 @@ public interface Env<T> {
 			throw new LookupException("No binding found for name: " + search_var);
 		}
 
+		public T get(int depth, int slot) {
+			throw new LookupException("No binding found at address: " + depth + ":" + slot);
+		}
+
 		public boolean isEmpty() {
 			return true;
 		}
 	}
 
+	/**
+	 * The top-level environment. Each define gets a fresh slot, so closures
+	 * that were resolved against an earlier definition of a name keep seeing
+	 * that definition, just as they did when globals were an ExtendEnv chain.
+	 */
+	static public class GlobalEnv<T> implements Env<T> {
+		private Map<String, Integer> _slots = new HashMap<String, Integer>();
+		private List<String> _names = new ArrayList<String>();
+		private Object[] _vals = new Object[16];
+
+		public int define(String var) {
+			int slot = _names.size();
+			_names.add(var);
+			_slots.put(var, slot);
+			if (slot == _vals.length)
+				_vals = Arrays.copyOf(_vals, 2 * slot);
+			return slot;
+		}
+
+		public int slot(String var) {
+			Integer slot = _slots.get(var);
+			if (slot == null)
+				return -1;
+			return slot;
+		}
+
+		public void set(int slot, T val) {
+			_vals[slot] = val;
+		}
+
+		public T get(int slot) {
+			T val = (T) _vals[slot];
+			if (val == null)
+				throw new LookupException("No binding found for name: " + _names.get(slot));
+			return val;
+		}
+
+		public T get(String search_var) {
+			int slot = slot(search_var);
+			if (slot < 0)
+				throw new LookupException("No binding found for name: " + search_var);
+			return get(slot);
+		}
+
+		public T get(int depth, int slot) {
+			return get(slot);
+		}
+
+		public boolean isEmpty() {
+			return false;
+		}
+	}
+
 	static public class ExtendEnv<T> implements Env<T> {
 		private Env<T> _saved_env;
 		private String _var;
@@ -56,6 +123,12 @@ public interface Env<T> {
 			return _saved_env.get(search_var);
 		}
 
+		public T get(int depth, int slot) {
+			if (depth == 0)
+				return _val;
+			return _saved_env.get(depth - 1, slot);
+		}
+
 		public boolean isEmpty() {
 			return false;
 		}
@@ -73,10 +146,103 @@ public interface Env<T> {
 		}
 	}
 
+	/**
+	 * A frame binds several variables at once, e.g. all formals of a call or
+	 * all names of a let, so that extending the environment costs a single
+	 * allocation. Lexical addresses use the index of a variable as its slot.
+	 */
+	static public class ExtendEnvFrame<T> implements Env<T> {
+		private Env<T> _saved_env;
+		private List<String> _vars;
+		private T[] _vals;
+
+		public ExtendEnvFrame(Env<T> saved_env, List<String> vars, T[] vals) {
+			_saved_env = saved_env;
+			_vars = vars;
+			_vals = vals;
+		}
+
+		public T get(String search_var) {
+			// Later bindings shadow earlier ones with the same name
+			for (int index = _vars.size() - 1; index >= 0; index--)
+				if (search_var.equals(_vars.get(index)))
+					return _vals[index];
+			return _saved_env.get(search_var);
+		}
+
+		public T get(int depth, int slot) {
+			if (depth == 0)
+				return _vals[slot];
+			return _saved_env.get(depth - 1, slot);
+		}
+
+		public boolean isEmpty() {
+			return false;
+		}
+
+		public Env<T> saved_env() {
+			return _saved_env;
+		}
+	}
+
+	/**
+	 * The environment in which the specification of a call is checked. It
+	 * adds no binding, lookups go to the environment of the call, and it
+	 * keeps the value of each SharedExp of the specification once computed.
+	 */
+	static public class MemoEnv<T> implements Env<T> {
+		private Env<T> _saved_env;
+		private Object[] _vals;
+
+		public MemoEnv(Env<T> saved_env, int size) {
+			_saved_env = saved_env;
+			_vals = new Object[size];
+		}
+
+		/**
+		 * @return the MemoEnv of a precondition environment, or of a
+		 *         postcondition environment which binds result on top of it.
+		 */
+		public static <T> MemoEnv<T> of(Env<T> env) {
+			if (env instanceof ExtendEnv)
+				env = ((ExtendEnv<T>) env).saved_env();
+			return (MemoEnv<T>) env;
+		}
+
+		/**
+		 * @return the value of the index-th shared expression, or null if it
+		 *         has not been computed yet.
+		 */
+		public T memo(int index) {
+			return (T) _vals[index];
+		}
+
+		public void memo(int index, T val) {
+			_vals[index] = val;
+		}
+
+		public T get(String search_var) {
+			return _saved_env.get(search_var);
+		}
+
+		public T get(int depth, int slot) {
+			return _saved_env.get(depth, slot);
+		}
+
+		public boolean isEmpty() {
+			return false;
+		}
+	}
+
+	/**
+	 * Binds the mutually recursive functions of a letrec. The closures are
+	 * created once, with this environment as their own, and the same
+	 * instances are returned by every lookup.
+	 */
 	static public class ExtendEnvRec implements Env<Value> {
 		private Env<Value> _saved_env;
 		private List<String> _names;
-		private List<Value.FunVal> _funs;
+		private Value.FunVal[] _funs;
 
 		public Env<Value> saved_env() {
 			return _saved_env;
@@ -87,13 +253,20 @@ public interface Env<T> {
 		}
 
 		public List<FunVal> vals() {
-			return _funs;
+			return Arrays.asList(_funs);
 		}
 
-		public ExtendEnvRec(Env<Value> saved_env, List<String> names, List<Value.FunVal> funs) {
+		public ExtendEnvRec(Env<Value> saved_env, List<String> names) {
 			_saved_env = saved_env;
 			_names = names;
-			_funs = funs;
+			_funs = new Value.FunVal[names.size()];
+		}
+
+		/**
+		 * Ties the knot: fun should be a closure over this environment.
+		 */
+		public void bind(int slot, Value.FunVal fun) {
+			_funs[slot] = fun;
 		}
 
 		public boolean isEmpty() {
@@ -101,15 +274,21 @@ public interface Env<T> {
 		}
 
 		public Value get(String search_var) {
-			int size = _names.size();
-			for (int index = 0; index < size; index++) {
-				if (search_var.equals(_names.get(index))) {
-					FunVal f = _funs.get(index);
-					return new Value.FunVal(this, f.formals(), f.spec(), f.body());
-				}
-			}
+			int index = _names.indexOf(search_var);
+			if (index >= 0)
+				return get(0, index);
 			return _saved_env.get(search_var);
 		}
+
+		public Value get(int depth, int slot) {
+			if (depth == 0) {
+				FunVal f = _funs[slot];
+				if (f == null)
+					throw new LookupException("No binding found for name: " + _names.get(slot));
+				return f;
+			}
+			return _saved_env.get(depth - 1, slot);
+		}
 	}
 
 }
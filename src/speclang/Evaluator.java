@@ -5,7 +5,12 @@ import static speclang.Heap.*;
 import static speclang.Value.*;
 
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.io.File;
 import java.io.IOException;
 
@@ -16,36 +21,137 @@ import speclang.Value.NumVal;
 
 public class Evaluator implements Visitor<Value, Value> {
 
-	private final Printer.Formatter ts = new Printer.Formatter();
+	final Printer.Formatter ts = new Printer.Formatter();
 
-	private volatile Env<Value> initEnv = initialEnv();
+	final GlobalEnv<Value> initEnv = initialEnv();
+
+	private final Resolver resolver = new Resolver(initEnv);
 
 	Heap heap = null;
 
+	Memoizer memoizer = null;
+
+	ForkJoinPool pool = null;
+
+	private ForkJoinPool forkPool = null;
+
+	private int forkThreshold = DEFAULT_FORK_THRESHOLD;
+
+	private final Map<Exp, Boolean> forks = new ConcurrentHashMap<Exp, Boolean>();
+
+	private final Map<Spec, Boolean> speculations = new ConcurrentHashMap<Spec, Boolean>();
+
+	DeferredChecks deferred = null;
+
+	private ContractPolicy _policy = ContractPolicy.FULL;
+
+	private final Map<String, ContractPolicy> _policies = new HashMap<String, ContractPolicy>();
+
+	/**
+	 * Sets how much of the specifications is checked in calls to functions
+	 * that have no policy of their own.
+	 */
+	public void setContractPolicy(ContractPolicy policy) {
+		_policy = policy;
+	}
+
+	/**
+	 * Sets how much of their specification is checked in calls to the
+	 * functions that define binds to name from now on.
+	 */
+	public void setContractPolicy(String name, ContractPolicy policy) {
+		_policies.put(name, policy);
+	}
+
+	ContractPolicy policy(FunVal operator) {
+		ContractPolicy policy = operator.policy();
+		return policy != null ? policy : _policy;
+	}
+
+	/**
+	 * @return value, with the contract policy set for name if it is a
+	 *         function.
+	 */
+	Value withPolicy(String name, Value value) {
+		ContractPolicy policy = _policies.get(name);
+		if (policy != null && value instanceof FunVal)
+			((FunVal) value).setPolicy(policy);
+		return value;
+	}
+
+	/**
+	 * Remember the results of calls to pure functions.
+	 */
+	Evaluator memoize(Memoizer m) {
+		memoizer = m;
+		return this;
+	}
+
+	/**
+	 * Evaluate the preconditions of different spec cases, and the
+	 * postconditions of a spec case, in parallel on p when they are
+	 * stateless.
+	 */
+	Evaluator parallelize(ForkJoinPool p) {
+		pool = p;
+		return this;
+	}
+
+	/**
+	 * Evaluate the operands of calls, sums, products and lists at the same
+	 * time on p when they are stateless and at least two of them are
+	 * estimated to make threshold calls or more.
+	 */
+	Evaluator forkOperands(ForkJoinPool p, int threshold) {
+		forkPool = p;
+		forkThreshold = threshold;
+		return this;
+	}
+
+	/**
+	 * Check pure postconditions in the background, and report violations
+	 * when d synchronizes.
+	 */
+	Evaluator defer(DeferredChecks d) {
+		deferred = d;
+		return this;
+	}
+
 	Value valueOf(Program p) throws ProgramError {
 		heap = new Heap16Bit();
-		return (Value) p.accept(this, initEnv);
+		if (deferred == null)
+			return (Value) p.accept(this, initEnv);
+		Value value;
+		try {
+			value = (Value) p.accept(this, initEnv);
+		} catch (ProgramError | RuntimeException e) {
+			deferred.sync(); // A violation in an earlier call comes first
+			throw e;
+		}
+		deferred.sync();
+		return value;
 	}
 
 	@Override
 	public Value visit(AddExp e, Env<Value> env) throws ProgramError {
 		List<Exp> operands = e.all();
+		Value[] values = forks(e, operands) ? evalParallel(operands, env) : null;
 		int result = 0;
-		for (Exp exp : operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env);
+		for (int i = 0; i < operands.size(); i++) {
+			NumVal intermediate = (NumVal) (values != null ? values[i] : operands.get(i).accept(this, env));
 			result += intermediate.v();
 		}
-		return new NumVal(result);
+		return NumVal.of(result);
 	}
 
 	@Override
 	public Value visit(UnitExp e, Env<Value> env) throws ProgramError {
-		return new UnitVal();
+		return UnitVal.v;
 	}
 
 	@Override
 	public Value visit(NumExp e, Env<Value> env) throws ProgramError {
-		return new NumVal(e.v());
+		return e.value();
 	}
 
 	@Override
@@ -55,7 +161,7 @@ public class Evaluator implements Visitor<Value, Value> {
 
 	@Override
 	public Value visit(BoolExp e, Env<Value> env) throws ProgramError {
-		return new BoolVal(e.v());
+		return BoolVal.of(e.v());
 	}
 
 	@Override
@@ -67,7 +173,7 @@ public class Evaluator implements Visitor<Value, Value> {
 			NumVal rVal = (NumVal) operands.get(i).accept(this, env);
 			result = result / rVal.v();
 		}
-		return new NumVal(result);
+		return NumVal.of(result);
 	}
 
 	@Override
@@ -78,13 +184,14 @@ public class Evaluator implements Visitor<Value, Value> {
 	@Override
 	public Value visit(MultExp e, Env<Value> env) throws ProgramError {
 		List<Exp> operands = e.all();
+		Value[] values = forks(e, operands) ? evalParallel(operands, env) : null;
 		double result = 1;
-		for (Exp exp : operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic
+		for (int i = 0; i < operands.size(); i++) {
+			NumVal intermediate = (NumVal) (values != null ? values[i] : operands.get(i).accept(this, env)); // Dynamic
 			// type-checking
 			result *= intermediate.v(); // Semantics of MultExp.
 		}
-		return new NumVal(result);
+		return NumVal.of(result);
 	}
 
 	@Override
@@ -103,12 +210,17 @@ public class Evaluator implements Visitor<Value, Value> {
 			NumVal rVal = (NumVal) operands.get(i).accept(this, env);
 			result = result - rVal.v();
 		}
-		return new NumVal(result);
+		return NumVal.of(result);
 	}
 
 	@Override
 	public Value visit(VarExp e, Env<Value> env) throws ProgramError {
 		// Previously, all variables had value 42. New semantics.
+		int depth = e.depth();
+		if (depth >= 0)
+			return env.get(depth, e.slot());
+		if (depth == VarExp.GLOBAL)
+			return initEnv.get(e.slot());
 		return env.get(e.name());
 	}
 
@@ -116,14 +228,12 @@ public class Evaluator implements Visitor<Value, Value> {
 	public Value visit(LetExp e, Env<Value> env) throws ProgramError { // New for varlang.
 		List<String> names = e.names();
 		List<Exp> value_exps = e.value_exps();
-		List<Value> values = new ArrayList<Value>(value_exps.size());
+		Value[] values = new Value[value_exps.size()];
 
-		for (Exp exp : value_exps)
-			values.add((Value) exp.accept(this, env));
+		for (int index = 0; index < values.length; index++)
+			values[index] = (Value) value_exps.get(index).accept(this, env);
 
-		Env<Value> new_env = env;
-		for (int index = 0; index < names.size(); index++)
-			new_env = new ExtendEnv<>(new_env, names.get(index), values.get(index));
+		Env<Value> new_env = new ExtendEnvFrame<>(env, names, values);
 
 		return (Value) e.body().accept(this, new_env);
 	}
@@ -133,13 +243,19 @@ public class Evaluator implements Visitor<Value, Value> {
 		String name = e.name();
 		Exp value_exp = e.value_exp();
 		Value value = (Value) value_exp.accept(this, env);
-		initEnv = new ExtendEnv<>(initEnv, name, value);
-		return new Value.UnitVal();
+		int slot = e.slot();
+		if (slot < 0) // Not resolved
+			slot = initEnv.define(name);
+		initEnv.set(slot, withPolicy(name, value));
+		return Value.UnitVal.v;
 	}
 
 	@Override
 	public Value visit(LambdaExp e, Env<Value> env) throws ProgramError { // New for funclang.
-		return new Value.FunVal(env, e.formals(), e.spec(), e.body()); //Notice that function values also contain specifications now.
+		Value.FunVal fun = new Value.FunVal(env, e.formals(), e.spec(), e.body()); //Notice that function values also contain specifications now.
+		if (memoizer != null)
+			fun.setMemo(memoizer.table(e));
+		return fun;
 	}
 
 	@Override
@@ -151,93 +267,398 @@ public class Evaluator implements Visitor<Value, Value> {
 		List<Exp> operands = e.operands();
 
 		// Call-by-value semantics
-		List<Value> actuals = new ArrayList<Value>(operands.size());
-		for (Exp exp : operands)
-			actuals.add((Value) exp.accept(this, env));
+		Value[] actuals = forks(e, operands) ? evalParallel(operands, env) : null;
+		if (actuals == null) {
+			actuals = new Value[operands.size()];
+			for (int index = 0; index < actuals.length; index++)
+				actuals[index] = (Value) operands.get(index).accept(this, env);
+		}
 
 		List<String> formals = operator.formals();
-		if (formals.size() != actuals.size())
+		if (formals.size() != actuals.length)
 			throw new ProgramError("Argument mismatch in call" + ts.visit(e, null));
 
-		Env<Value> closure_env = operator.env();
-		Env<Value> fun_env = appendEnv(closure_env, initEnv);
-		for (int index = 0; index < formals.size(); index++)
-			fun_env = new ExtendEnv<>(fun_env, formals.get(index), actuals.get(index));
-
-		// Runtime verification of specifications.
-		// First check the precondition
-		FuncSpec spec = (FuncSpec)operator.spec(); 
-		int speccase = (int)((Value.NumVal) evalSpecCases(spec, fun_env)).v();
-		if (speccase < 0) //No precondition holds
-			throw new ProgramError("Precondition violation in call:" + ts.visit(e, null));
-			// return error("Precondition violation in call", e);
-		// Evaluate the function body
-		Value fresult = (Value) operator.body().accept(this, fun_env); 
-		// Create a new environment to check postconditions that has the result of the function
-		Env<Value> post_env = new ExtendEnv<>(fun_env, "result", fresult);
-		SpecCase post = spec.speccases().get(speccase);
-		Value.BoolVal postcondition = (Value.BoolVal) evalPostConditions(post, post_env);
-		if (postcondition.v()) // Postcondition is true
-			return fresult;
-		throw new ProgramError("Postcondition violation in call:" + ts.visit(e, null));
+		ContractPolicy policy = policy(operator).at(e);
+		// A call in tail position is not looked up, as its result is only
+		// known to, and remembered by, the call that started the chain.
+		Memoizer.Table memo = e.isTail() ? null : operator.memo();
+		if (memo != null) {
+			Value cached = memo.get(actuals, policy);
+			if (cached != null)
+				return cached;
+		}
+
+		// The closure environment bottoms out in the global table, so the
+		// call only needs a frame for its formals.
+		Env<Value> fun_env = new ExtendEnvFrame<>(operator.env(), formals, actuals);
+
+		// Runtime verification of specifications, as far as the contract
+		// policy asks. First check the precondition
+		Env<Value> spec_env = fun_env;
+		SpecCase post = null; // The postconditions to check, if any
+		if (policy != ContractPolicy.OFF) {
+			FuncSpec spec = (FuncSpec)operator.spec(); 
+			spec_env = specEnv(spec, fun_env);
+			int speccase = (int)((Value.NumVal) evalSpecCases(spec, spec_env)).v();
+			if (speccase < 0) //No precondition holds
+				throw new ProgramError("Precondition violation in call:" + ts.visit(e, null));
+				// return error("Precondition violation in call", e);
+			if (policy == ContractPolicy.FULL)
+				post = spec.speccases().get(speccase);
+		}
+		// A call in tail position leaves the body to the call that started
+		// the chain of tail calls.
+		if (e.isTail())
+			return new TailCall(operator, fun_env, spec_env, post, e);
+		// Evaluate the function body, and the bodies of its tail calls
+		Value fresult = body(operator, fun_env, e);
+		List<TailCall> pending = null;
+		while (fresult instanceof TailCall) {
+			TailCall call = (TailCall) fresult;
+			if (!trivial(call._post)) {
+				if (pending == null)
+					pending = new ArrayList<TailCall>();
+				pending.add(call);
+			}
+			fresult = body(call._operator, call._fun_env, call._e);
+		}
+		// All calls of the chain return fresult. Their postconditions are
+		// checked now, innermost call first as without tail calls.
+		if (pending != null)
+			for (int i = pending.size() - 1; i >= 0; i--) {
+				TailCall call = pending.get(i);
+				checkPostConditions(call._post, call._spec_env, fresult, call._e);
+			}
+		checkPostConditions(post, spec_env, fresult, e);
+		if (memo != null)
+			memo.put(actuals, fresult, policy);
+		return fresult;
+	}
+
+	/**
+	 * @return the value of the body of operator in fun_env, for call e. The
+	 *         calls a primitive makes are reported as e.
+	 */
+	private Value body(FunVal operator, Env<Value> fun_env, CallExp e) throws ProgramError {
+		if (operator.body() instanceof PrimitiveExp)
+			return primitive((PrimitiveExp) operator.body(), fun_env, e);
+		return (Value) operator.body().accept(this, fun_env);
 	}
 
-	/* Helpers for CallExp */
-	/***
-	 * Create an env that has bindings from fst appended to bindings from snd. The
-	 * order of bindings is bindings from fst followed by that from snd.
-	 * 
-	 * @param fst
-	 * @param snd
-	 * @return
+	/**
+	 * A call in tail position whose operator, actuals and preconditions have
+	 * been evaluated, but whose body has not.
 	 */
-	private Env<Value> appendEnv(Env<Value> fst, Env<Value> snd) {
-		if (fst.isEmpty())
-			return snd;
-		if (fst instanceof ExtendEnv) {
-			ExtendEnv<Value> f = (ExtendEnv<Value>) fst;
-			return new ExtendEnv<>(appendEnv(f.saved_env(), snd), f.var(), f.val());
+	private static class TailCall implements Value {
+		final FunVal _operator;
+		final Env<Value> _fun_env;
+		final Env<Value> _spec_env;
+		final SpecCase _post;
+		final CallExp _e;
+
+		TailCall(FunVal operator, Env<Value> fun_env, Env<Value> spec_env, SpecCase post, CallExp e) {
+			_operator = operator;
+			_fun_env = fun_env;
+			_spec_env = spec_env;
+			_post = post;
+			_e = e;
+		}
+
+		public String tostring() {
+			return "tail call";
 		}
-		ExtendEnvRec f = (ExtendEnvRec) fst;
-		return new ExtendEnvRec(appendEnv(f.saved_env(), snd), f.names(), f.vals());
 	}
-	
+
+	/* Helpers for CallExp */
+	/**
+	 * @return the environment in which spec is checked for a call whose
+	 *         formals are bound by fun_env.
+	 */
+	static Env<Value> specEnv(FuncSpec spec, Env<Value> fun_env) {
+		if (spec == null || spec.shared().isEmpty())
+			return fun_env;
+		return new MemoEnv<>(fun_env, spec.shared().size());
+	}
+
 	private Value evalSpecCases(FuncSpec s, Env<Value> env) throws ProgramError {
 		List<SpecCase> speccases = s.speccases();
-		for(int i=0; i< speccases.size(); i++) {
-			Value speccase_value = evalPreConditions(speccases.get(i), env);
-			if (!(speccase_value instanceof Value.BoolVal))
-				throw new ProgramError("Condition not a boolean in expression" + ts.visit(s, null));
-			Value.BoolVal condition = (Value.BoolVal) speccase_value;
-			if (condition.v()) return new Value.NumVal(i);
-		}			
-		return new Value.NumVal(-1);
+		Parallel<SpecCase> parallel = speculates(s) ? parallel(speccases, c -> evalPreConditions(c, env)) : null;
+		try {
+			for(int i=0; i< speccases.size(); i++) {
+				Value speccase_value = parallel != null ? parallel.get(i) : evalPreConditions(speccases.get(i), env);
+				if (!(speccase_value instanceof Value.BoolVal))
+					throw new ProgramError("Condition not a boolean in expression" + ts.visit(s, null));
+				Value.BoolVal condition = (Value.BoolVal) speccase_value;
+				if (condition.v()) return Value.NumVal.of(i);
+			}
+		} finally {
+			if (parallel != null)
+				parallel.cancel();
+		}
+		return Value.NumVal.of(-1);
 	}
 	
 	private Value evalPreConditions(SpecCase s, Env<Value> env) throws ProgramError {
-		for (Exp precondition : s.preconditions()) {
+		for (Exp precondition : s.checkedPreconditions()) {
 			Value precond_value = precondition.accept(this, env);
 			if (!(precond_value instanceof Value.BoolVal))
 				throw new ProgramError("Condition not a boolean in expression" + ts.visit(s, null));
 			Value.BoolVal condition = (Value.BoolVal) precond_value;
 			if (!condition.v()) return condition;
 		}
-		return new Value.BoolVal(true);
+		return Value.BoolVal.of(true);
 	}
 	
 	private Value evalPostConditions(SpecCase s, Env<Value> env) throws ProgramError {
-		for (Exp postcondition : s.postconditions()) {
-			Value postcond_value = postcondition.accept(this, env);
-			if (!(postcond_value instanceof Value.BoolVal))
-				throw new ProgramError("Condition not a boolean in expression" + ts.visit(s, null));
-			Value.BoolVal condition = (Value.BoolVal) postcond_value;
-			if (!condition.v()) return condition;
+		List<Exp> postconditions = s.checkedPostconditions();
+		Parallel<Exp> parallel = speculates(s) ? parallel(postconditions, c -> c.accept(this, env)) : null;
+		try {
+			for (int i = 0; i < postconditions.size(); i++) {
+				Value postcond_value = parallel != null ? parallel.get(i) : postconditions.get(i).accept(this, env);
+				if (!(postcond_value instanceof Value.BoolVal))
+					throw new ProgramError("Condition not a boolean in expression" + ts.visit(s, null));
+				Value.BoolVal condition = (Value.BoolVal) postcond_value;
+				if (!condition.v()) return condition;
+			}
+		} finally {
+			if (parallel != null)
+				parallel.cancel();
 		}
-		return new Value.BoolVal(true);
+		return Value.BoolVal.of(true);
 	}
 	
+	/**
+	 * A check of one item, which is evaluated on the fork-join pool.
+	 */
+	private interface Check<T> {
+		Value eval(T item) throws ProgramError;
+	}
+
+	/**
+	 * @return true if the conditions of s, the preconditions of its spec
+	 *         cases if it is a FuncSpec and its postconditions otherwise,
+	 *         may be evaluated before they are needed. Only stateless ones
+	 *         are, since a check that is cancelled once it runs is not
+	 *         stopped, and would still interleave with those that follow.
+	 */
+	private boolean speculates(Spec s) throws ProgramError {
+		if (pool == null)
+			return false;
+		Boolean stateless = speculations.get(s);
+		if (stateless == null) {
+			List<Exp> conditions = new ArrayList<Exp>();
+			if (s instanceof FuncSpec)
+				for (SpecCase speccase : ((FuncSpec) s).speccases())
+					conditions.addAll(speccase.checkedPreconditions());
+			else
+				conditions.addAll(((SpecCase) s).checkedPostconditions());
+			PurityChecker.Stateless checker = new PurityChecker.Stateless();
+			stateless = true;
+			for (Exp condition : conditions)
+				stateless = stateless && (Boolean) condition.accept(checker, null);
+			speculations.put(s, stateless);
+		}
+		return stateless;
+	}
+
+	/**
+	 * @return checks of all items started at the same time, or null if
+	 *         they are checked one after another.
+	 */
+	private <T> Parallel<T> parallel(List<T> items, Check<T> check) {
+		if (pool == null || items.size() < 2)
+			return null;
+		return new Parallel<T>(pool, items, check);
+	}
+
+	/**
+	 * The checks of a list of items, all but the first forked on the pool.
+	 * The first is checked on this thread. The caller reads the outcomes
+	 * in order and stops as it would if they were sequential, so the same
+	 * spec case is selected and the same violation or error is reported.
+	 */
+	private final class Parallel<T> {
+		private final List<T> _items;
+		private final Check<T> _check;
+		private final List<ForkJoinTask<Object>> _tasks = new ArrayList<ForkJoinTask<Object>>();
+
+		Parallel(ForkJoinPool pool, List<T> items, Check<T> check) {
+			_items = items;
+			_check = check;
+			for (int i = 1; i < items.size(); i++) {
+				T item = items.get(i);
+				ForkJoinTask<Object> task = ForkJoinTask.adapt(() -> outcome(item));
+				if (ForkJoinTask.inForkJoinPool())
+					task.fork();
+				else
+					pool.execute(task);
+				_tasks.add(task);
+			}
+		}
+
+		Value get(int i) throws ProgramError {
+			Object outcome = i == 0 ? outcome(_items.get(0)) : _tasks.get(i - 1).join();
+			// Workers have smaller stacks; a deep check is retried here.
+			if (outcome instanceof StackOverflowError)
+				outcome = outcome(_items.get(i));
+			if (outcome instanceof ProgramError)
+				throw (ProgramError) outcome;
+			if (outcome instanceof RuntimeException)
+				throw (RuntimeException) outcome;
+			if (outcome instanceof Error)
+				throw (Error) outcome;
+			return (Value) outcome;
+		}
+
+		/**
+		 * Drops the checks whose outcome is no longer needed.
+		 */
+		void cancel() {
+			for (ForkJoinTask<Object> task : _tasks)
+				task.cancel(false);
+		}
+
+		private Object outcome(T item) {
+			try {
+				return _check.eval(item);
+			} catch (ProgramError | RuntimeException | StackOverflowError e) {
+				return e;
+			}
+		}
+	}
+
+	private void checkPostConditions(SpecCase post, Env<Value> spec_env, Value fresult, CallExp e) throws ProgramError {
+		if (post == null)
+			return;
+		// Create a new environment to check postconditions that has the result of the function
+		Env<Value> post_env = new ExtendEnv<>(spec_env, "result", fresult);
+		if (deferred != null && deferred.defers(post)) {
+			deferred.defer(() -> violation(post, post_env, e));
+			return;
+		}
+		String violation = violation(post, post_env, e);
+		if (violation != null)
+			throw new ProgramError(violation);
+	}
+
+	/**
+	 * @return the message for a violation of the postconditions of post, or
+	 *         null if they hold.
+	 */
+	private String violation(SpecCase post, Env<Value> post_env, CallExp e) throws ProgramError {
+		Value.BoolVal postcondition = (Value.BoolVal) evalPostConditions(post, post_env);
+		return postcondition.v() ? null : "Postcondition violation in call:" + ts.visit(e, null);
+	}
+
+	/**
+	 * @return true if the postconditions are all #t, so a pending tail call
+	 * need not be remembered to check them.
+	 */
+	private static boolean trivial(SpecCase post) {
+		if (post == null)
+			return true;
+		for (Exp postcondition : post.checkedPostconditions())
+			if (!(postcondition instanceof BoolExp) || !((BoolExp) postcondition).v())
+				return false;
+		return true;
+	}
+
 	/* End: helpers for CallExp */
 
+	/* Helpers for parallel operands */
+	/**
+	 * At most this many forked tasks wait in a worker's queue; more are
+	 * not worth forking, since the other workers have enough to steal.
+	 */
+	static final int MAX_SURPLUS = 3;
+
+	/**
+	 * The number of calls an operand is estimated to make for it to be
+	 * worth a task of its own.
+	 */
+	static final int DEFAULT_FORK_THRESHOLD = 100;
+
+	/**
+	 * Stateless, and estimating the number of calls that an expression
+	 * makes: its own calls and those made by the bodies of the functions
+	 * they call. A call to a function that is being estimated, i.e. a
+	 * recursive call, makes an unbounded number of calls.
+	 */
+	private static class Cost extends PurityChecker.Stateless {
+		static final int UNBOUNDED = Integer.MAX_VALUE;
+
+		int _calls = 0;
+		private final Map<LambdaExp, Integer> _costs = new HashMap<LambdaExp, Integer>();
+		private final List<LambdaExp> _open = new ArrayList<LambdaExp>();
+
+		public Boolean visit(CallExp e, Env<Type> env) throws ProgramError {
+			_calls = add(_calls, 1);
+			return super.visit(e, env);
+		}
+
+		boolean check(LambdaExp e) throws ProgramError {
+			if (_open.contains(e)) {
+				_calls = UNBOUNDED;
+				return super.check(e);
+			}
+			int calls = _calls;
+			Integer known = _costs.get(e);
+			_open.add(e);
+			_calls = 0;
+			boolean stateless;
+			try {
+				stateless = super.check(e);
+			} finally {
+				_open.remove(_open.size() - 1);
+			}
+			if (known == null)
+				_costs.put(e, known = _calls);
+			_calls = add(calls, known);
+			return stateless;
+		}
+
+		private static int add(int calls, int more) {
+			return (int) Math.min((long) calls + more, UNBOUNDED);
+		}
+	}
+
+	/**
+	 * @return true if operands, which e has, are worth evaluating at the
+	 *         same time.
+	 */
+	private boolean forks(Exp e, List<Exp> operands) throws ProgramError {
+		if (forkPool == null || operands.size() < 2)
+			return false;
+		Boolean heavy = forks.get(e);
+		if (heavy == null) {
+			boolean pure = true;
+			int count = 0;
+			for (Exp operand : operands) {
+				Cost cost = new Cost();
+				pure = pure && (Boolean) operand.accept(cost, null);
+				if (cost._calls >= forkThreshold)
+					count++;
+			}
+			heavy = pure && count >= 2;
+			forks.put(e, heavy);
+		}
+		return heavy && ForkJoinTask.getSurplusQueuedTaskCount() <= MAX_SURPLUS;
+	}
+
+	private Value[] evalParallel(List<Exp> operands, Env<Value> env) throws ProgramError {
+		Value[] values = new Value[operands.size()];
+		Parallel<Exp> parallel = new Parallel<Exp>(forkPool, operands, o -> o.accept(this, env));
+		try {
+			for (int i = 0; i < values.length; i++)
+				values[i] = parallel.get(i);
+		} finally {
+			parallel.cancel();
+		}
+		return values;
+	}
+
+	/* End: helpers for parallel operands */
+
 	@Override
 	public Value visit(IfExp e, Env<Value> env) throws ProgramError {
 		Object result = e.conditional().accept(this, env);
@@ -255,35 +676,35 @@ public class Evaluator implements Visitor<Value, Value> {
 	public Value visit(LessExp e, Env<Value> env) throws ProgramError { 
 		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
 		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-		return new Value.BoolVal(first.v() < second.v());
+		return Value.BoolVal.of(first.v() < second.v());
 	}
 
 	@Override
 	public Value visit(LessEqExp e, Env<Value> env) throws ProgramError {
 		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
 		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-		return new Value.BoolVal(first.v() <= second.v());
+		return Value.BoolVal.of(first.v() <= second.v());
 	}
 
 	@Override
 	public Value visit(EqualExp e, Env<Value> env) throws ProgramError { 
 		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
 		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-		return new Value.BoolVal(first.v() == second.v());
+		return Value.BoolVal.of(first.v() == second.v());
 	}
 
 	@Override
 	public Value visit(GreaterExp e, Env<Value> env) throws ProgramError { 
 		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
 		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-		return new Value.BoolVal(first.v() > second.v());
+		return Value.BoolVal.of(first.v() > second.v());
 	}
 
 	@Override
 	public Value visit(GreaterEqExp e, Env<Value> env) throws ProgramError { 
 		Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
 		Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-		return new Value.BoolVal(first.v() >= second.v());
+		return Value.BoolVal.of(first.v() >= second.v());
 	}
 
 	@Override
@@ -310,31 +731,57 @@ public class Evaluator implements Visitor<Value, Value> {
 		List<Exp> elemExps = e.elems();
 		int length = elemExps.size();
 		if (length == 0)
-			return new Value.Null();
-
-		// Order of evaluation: left to right e.g. (list (+ 3 4) (+ 5 4))
-		Value[] elems = new Value[length];
-		for (int i = 0; i < length; i++)
-			elems[i] = (Value) elemExps.get(i).accept(this, env);
+			return Value.Null.v;
+
+		// Order of evaluation: left to right e.g. (list (+ 3 4) (+ 5 4)),
+		// or at the same time for heavy pure elements
+		Value[] elems = forks(e, elemExps) ? evalParallel(elemExps, env) : null;
+		if (elems == null) {
+			elems = new Value[length];
+			for (int i = 0; i < length; i++)
+				elems[i] = (Value) elemExps.get(i).accept(this, env);
+		}
 
-		Value result = new Value.Null();
-		for (int i = length - 1; i >= 0; i--)
-			result = new PairVal(elems[i], result);
-		return result;
+		return ListVal.of(elems);
 	}
 
 	@Override
 	public Value visit(NullExp e, Env<Value> env) throws ProgramError {
 		Value val = (Value) e.arg().accept(this, env);
-		return new BoolVal(val instanceof Value.Null);
+		return BoolVal.of(val instanceof Value.Null);
 	}
 
 	public Value visit(EvalExp e, Env<Value> env) throws ProgramError {
 		StringVal programText = (StringVal) e.code().accept(this, env);
 		Program p = _reader.parse(programText.v());
+		resolver.resolve(p);
 		return (Value) p.accept(this, env);
 	}
 
+	@Override
+	public Value visit(PrimitiveExp e, Env<Value> env) throws ProgramError {
+		return primitive(e, env, null);
+	}
+
+	/**
+	 * @return the value of e in env, for the call origin if not null.
+	 */
+	Value primitive(PrimitiveExp e, Env<Value> env, CallExp origin) throws ProgramError {
+		List<Exp> args = e.args();
+		Value[] actuals = new Value[args.size()];
+		for (int i = 0; i < actuals.length; i++)
+			actuals[i] = (Value) args.get(i).accept(this, env);
+		return e.primitive().apply(actuals, (f, fargs) -> callback(origin, f, fargs));
+	}
+
+	/**
+	 * Calls f on args for a primitive that origin calls, as a call
+	 * expression would.
+	 */
+	Value callback(CallExp origin, Value f, Value... args) throws ProgramError {
+		return (Value) Primitives.site(args, origin).accept(this, Primitives.frame(initEnv, f, args));
+	}
+
 	public Value visit(ReadExp e, Env<Value> env) throws ProgramError {
 		StringVal fileName = (StringVal) e.file().accept(this, env);
 		try {
@@ -349,61 +796,61 @@ public class Evaluator implements Visitor<Value, Value> {
 	public Value visit(LetrecExp e, Env<Value> env) throws ProgramError {
 		List<String> names = e.names();
 		List<Exp> fun_exps = e.fun_exps();
-		List<Value.FunVal> funs = new ArrayList<Value.FunVal>(fun_exps.size());
 
-		for (Exp exp : fun_exps)
-			funs.add((Value.FunVal) exp.accept(this, env));
+		// The functions close over the environment that binds them.
+		ExtendEnvRec new_env = new ExtendEnvRec(env, names);
+		for (int index = 0; index < fun_exps.size(); index++)
+			new_env.bind(index, (Value.FunVal) fun_exps.get(index).accept(this, new_env));
 
-		Env<Value> new_env = new ExtendEnvRec(env, names, funs);
 		return (Value) e.body().accept(this, new_env);
 	}
 
 	@Override
 	public Value visit(IsListExp e, Env<Value> env) throws ProgramError {
 		Value val = (Value) e.exp().accept(this, env);
-		return new BoolVal(val instanceof Value.PairVal && ((Value.PairVal) val).isList() || val instanceof Value.Null);
+		return BoolVal.of(val instanceof Value.PairVal && ((Value.PairVal) val).isList() || val instanceof Value.Null);
 	}
 
 	@Override
 	public Value visit(IsPairExp e, Env<Value> env) throws ProgramError {
 		Value val = (Value) e.exp().accept(this, env);
-		return new BoolVal(val instanceof Value.PairVal);
+		return BoolVal.of(val instanceof Value.PairVal);
 	}
 
 	@Override
 	public Value visit(IsUnitExp e, Env<Value> env) throws ProgramError {
 		Value val = (Value) e.exp().accept(this, env);
-		return new BoolVal(val instanceof Value.UnitVal);
+		return BoolVal.of(val instanceof Value.UnitVal);
 	}
 
 	@Override
 	public Value visit(IsProcedureExp e, Env<Value> env) throws ProgramError {
 		Value val = (Value) e.exp().accept(this, env);
-		return new BoolVal(val instanceof Value.FunVal);
+		return BoolVal.of(val instanceof Value.FunVal);
 	}
 
 	@Override
 	public Value visit(IsStringExp e, Env<Value> env) throws ProgramError {
 		Value val = (Value) e.exp().accept(this, env);
-		return new BoolVal(val instanceof Value.StringVal);
+		return BoolVal.of(val instanceof Value.StringVal);
 	}
 
 	@Override
 	public Value visit(IsNumberExp e, Env<Value> env) throws ProgramError {
 		Value val = (Value) e.exp().accept(this, env);
-		return new BoolVal(val instanceof Value.NumVal);
+		return BoolVal.of(val instanceof Value.NumVal);
 	}
 
 	@Override
 	public Value visit(IsBooleanExp e, Env<Value> env) throws ProgramError {
 		Value val = (Value) e.exp().accept(this, env);
-		return new BoolVal(val instanceof Value.BoolVal);
+		return BoolVal.of(val instanceof Value.BoolVal);
 	}
 
 	@Override
 	public Value visit(IsNullExp e, Env<Value> env) throws ProgramError {
 		Value val = (Value) e.exp().accept(this, env);
-		return new BoolVal(val instanceof Value.Null);
+		return BoolVal.of(val instanceof Value.Null);
 	}
 
 	@Override
@@ -436,7 +883,59 @@ public class Evaluator implements Visitor<Value, Value> {
 		Exp value_exp = e.value_exp();
 		Value.RefVal loc = (Value.RefVal) value_exp.accept(this, env);
 		heap.free(loc);
-		return new Value.UnitVal();
+		return Value.UnitVal.v;
+	}
+
+	@Override
+	public Value visit(VectorExp e, Env<Value> env) throws ProgramError {
+		List<Exp> elemExps = e.elems();
+		// Order of evaluation: left to right, as for lists
+		Value[] elems = forks(e, elemExps) ? evalParallel(elemExps, env) : null;
+		if (elems == null) {
+			elems = new Value[elemExps.size()];
+			for (int i = 0; i < elems.length; i++)
+				elems[i] = (Value) elemExps.get(i).accept(this, env);
+		}
+		return VectorVal.of(elems);
+	}
+
+	@Override
+	public Value visit(MakeVectorExp e, Env<Value> env) throws ProgramError {
+		Value size = (Value) e.size().accept(this, env);
+		Value init = (Value) e.init().accept(this, env);
+		return VectorVal.make(size, init);
+	}
+
+	@Override
+	public Value visit(VectorRefExp e, Env<Value> env) throws ProgramError {
+		VectorVal vec = (VectorVal) e.vec().accept(this, env);
+		Value index = (Value) e.index().accept(this, env);
+		return vec.get(index);
+	}
+
+	@Override
+	public Value visit(VectorLengthExp e, Env<Value> env) throws ProgramError {
+		VectorVal vec = (VectorVal) e.vec().accept(this, env);
+		return NumVal.of(vec.length());
+	}
+
+	@Override
+	public Value visit(VectorSetExp e, Env<Value> env) throws ProgramError {
+		VectorVal vec = (VectorVal) e.vec().accept(this, env);
+		Value index = (Value) e.index().accept(this, env);
+		Value value = (Value) e.value_exp().accept(this, env);
+		return vec.set(index, value);
+	}
+
+	@Override
+	public Value visit(SharedExp e, Env<Value> env) throws ProgramError {
+		MemoEnv<Value> memo = MemoEnv.of(env);
+		Value value = memo.memo(e.index());
+		if (value == null) {
+			value = (Value) e.exp().accept(this, memo);
+			memo.memo(e.index(), value);
+		}
+		return value;
 	}
 
 	@Override
@@ -449,8 +948,8 @@ public class Evaluator implements Visitor<Value, Value> {
 		throw new ProgramError("Specification cases are used during evaluation of call expression " + ts.visit(s, null));
 	}
 
-	private Env<Value> initialEnv() {
-		Env<Value> initEnv = new EmptyEnv<>();
+	private GlobalEnv<Value> initialEnv() {
+		GlobalEnv<Value> initEnv = new GlobalEnv<>();
 
 		/*
 		 * Procedure: (read <filename>). Following is same as (define read (lambda
@@ -460,7 +959,7 @@ public class Evaluator implements Visitor<Value, Value> {
 		formals.add("file");
 		Exp body = new AST.ReadExp(new VarExp("file"));
 		Value.FunVal readFun = new Value.FunVal(initEnv, formals, null, body); //Exercise: What would the specification here?
-		initEnv = new Env.ExtendEnv<>(initEnv, "read", readFun);
+		initEnv.set(initEnv.define("read"), readFun);
 
 		/*
 		 * Procedure: (require <filename>). Following is same as (define require (lambda
@@ -470,13 +969,28 @@ public class Evaluator implements Visitor<Value, Value> {
 		formals.add("file");
 		body = new EvalExp(new AST.ReadExp(new VarExp("file")));
 		Value.FunVal requireFun = new Value.FunVal(initEnv, formals, null, body); //Exercise: What would the specification here?
-		initEnv = new Env.ExtendEnv<>(initEnv, "require", requireFun);
+		initEnv.set(initEnv.define("require"), requireFun);
 
 		/* Add new built-in procedures here */
 
+		/*
+		 * The list procedures of Primitives, e.g. (length <list>). Following is
+		 * same as (define length (lambda (lst) (length lst))) with the Java
+		 * length.
+		 */
+		for (Primitives.Primitive primitive : Primitives.all()) {
+			LambdaExp fun = Primitives.lambda(primitive);
+			initEnv.set(initEnv.define(primitive.name()),
+					new Value.FunVal(initEnv, fun.formals(), fun.spec(), fun.body()));
+		}
+
 		return initEnv;
 	}
 
+	Resolver resolver() {
+		return resolver;
+	}
+
 	Reader _reader;
 
 	public Evaluator(Reader reader) {
@@ -1,6 +1,7 @@
 package speclang;
 
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 import speclang.AST.*;
 
@@ -20,20 +21,122 @@ public class Interpreter {
 				+ "or try ((lambda (x: num | (> x 0) -> (= result 342)) (+ 3 (+ 4 x))) 2) \n" + "Press Ctrl + C to exit.");
 		Reader reader = new Reader();
 		Evaluator eval = new Evaluator(reader);
+		// Run with -compile to use the NodeCompiler instead of the Evaluator,
+		// with -jit to also compile frequently called functions to bytecode.
+		// Run with -continuations[=<max depth>] to evaluate with the control
+		// stack on the heap. Run with -optimize[=<inlining budget>] to simplify
+		// programs first. Run with -memoize[=<table size>] to remember the
+		// results of calls to pure functions. Run with -contracts=off|pre|full|boundary
+		// to choose how much of the specifications is checked, and with
+		// -discharge to not check the spec cases the Checker can prove. Run
+		// with -parallel to have the Evaluator check specifications in parallel,
+		// and with -defer[=<checks between synchronizations>] to have it check
+		// pure postconditions in the background. Run with -fork[=<calls>] to
+		// have it evaluate stateless operands that are estimated to make that
+		// many calls in parallel. These three are only supported by the
+		// Evaluator itself, so not with -compile, -jit or -continuations.
+		NodeCompiler compiler = null;
+		Optimizer optimizer = null;
+		Memoizer memoizer = null;
+		Prover prover = null;
+		boolean parallel = false;
+		DeferredChecks deferred = null;
+		int fork = 0;
+		ContractPolicy policy = ContractPolicy.FULL;
+		for (String arg : args) {
+			if (arg.equals("-compile"))
+				compiler = new NodeCompiler(reader);
+			else if (arg.equals("-jit"))
+				compiler = new NodeCompiler(reader).jit(BytecodeCompiler.DEFAULT_THRESHOLD);
+			else if (arg.equals("-continuations"))
+				eval = new ContinuationEvaluator(reader, ContinuationEvaluator.DEFAULT_MAX_DEPTH);
+			else if (arg.startsWith("-continuations="))
+				eval = new ContinuationEvaluator(reader, Integer.parseInt(arg.substring("-continuations=".length())));
+			else if (arg.equals("-optimize"))
+				optimizer = new Optimizer();
+			else if (arg.startsWith("-optimize="))
+				optimizer = new Optimizer(Integer.parseInt(arg.substring("-optimize=".length())));
+			else if (arg.equals("-memoize"))
+				memoizer = new Memoizer(Memoizer.DEFAULT_SIZE);
+			else if (arg.startsWith("-memoize="))
+				memoizer = new Memoizer(Integer.parseInt(arg.substring("-memoize=".length())));
+			else if (arg.startsWith("-contracts=")) {
+				String name = arg.substring("-contracts=".length());
+				try {
+					policy = ContractPolicy.parse(name);
+				} catch (IllegalArgumentException e) {
+					System.out.println("Error: -contracts takes off, pre, full or boundary, not " + name);
+					return;
+				}
+			}
+			else if (arg.equals("-discharge"))
+				prover = new Prover();
+			else if (arg.equals("-parallel"))
+				parallel = true;
+			else if (arg.equals("-fork"))
+				fork = Evaluator.DEFAULT_FORK_THRESHOLD;
+			else if (arg.startsWith("-fork="))
+				fork = Integer.parseInt(arg.substring("-fork=".length()));
+			else if (arg.equals("-defer"))
+				deferred = new DeferredChecks(DeferredChecks.DEFAULT_BACKLOG);
+			else if (arg.startsWith("-defer="))
+				deferred = new DeferredChecks(Integer.parseInt(arg.substring("-defer=".length())));
+		}
+		String engine = compiler != null ? "-compile or -jit"
+				: eval instanceof ContinuationEvaluator ? "-continuations" : null;
+		String evaluatorOnly = parallel ? "-parallel" : deferred != null ? "-defer" : fork > 0 ? "-fork" : null;
+		if (engine != null && evaluatorOnly != null) {
+			System.out.println("Error: " + evaluatorOnly + " is only supported by the Evaluator, not with " + engine);
+			return;
+		}
+		if (compiler != null)
+			compiler.setContractPolicy(policy);
+		else
+			eval.setContractPolicy(policy);
+		if (parallel)
+			eval.parallelize(ForkJoinPool.commonPool());
+		if (deferred != null)
+			eval.defer(deferred);
+		if (fork > 0)
+			eval.forkOperands(ForkJoinPool.commonPool(), fork);
+		if (memoizer != null) {
+			if (compiler != null)
+				compiler.memoize(memoizer);
+			else
+				eval.memoize(memoizer);
+		}
 		Printer printer = new Printer();
-		Checker checker = new Checker(); // Type checker
+		Checker checker = new Checker().discharge(prover); // Type checker
+		// Shares the global table of the engine that runs the program
+		Resolver resolver = compiler != null ? compiler.resolver() : eval.resolver();
 		REPL: while (true) { // Read-Eval-Print-Loop (also known as REPL)
 			Program p = null;
 			try {
 				p = reader.read();
 				if (p._e == null)
 					continue REPL;
+				if (prover != null)
+					prover.resetCounts();
 				Type t = checker.check(p); /*** Type checking the program ***/
 				if (t instanceof Type.ErrorT)
 					printer.print(t);
 				else {
-					Value val = eval.valueOf(p);
+					if (prover != null)
+						System.out.println("Checker discharged " + prover.discharged() + " of " + prover.cases()
+								+ " spec cases, and proved the preconditions of " + prover.selected());
+					if (optimizer != null) {
+						p = optimizer.optimize(p); /*** Folding constants and inlining ***/
+						System.out.println("Optimizer removed " + optimizer.removed() + " of " + optimizer.visited()
+								+ " nodes and inlined " + optimizer.inlined() + " calls, adding " + optimizer.grown()
+								+ " nodes");
+					}
+					resolver.resolve(p); /*** Resolving variables to lexical addresses ***/
+					if (memoizer != null)
+						memoizer.resetCounts();
+					Value val = compiler != null ? compiler.valueOf(p) : eval.valueOf(p);
 					printer.print(val);
+					if (memoizer != null)
+						System.out.println("Memoized calls: " + memoizer.hits() + " hits, " + memoizer.misses() + " misses");
 				}
 			} catch (Env.LookupException e) {
 				printer.print(e);
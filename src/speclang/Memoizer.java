@@ -0,0 +1,154 @@
+package speclang;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import speclang.AST.*;
+
+/**
+ * Remembers the results of calls to pure functions. Each function value
+ * whose lambda expression is pure gets a table from actual parameters to
+ * result, which keeps the most recently used entries up to a given size.
+ * Actual parameters are compared by structure, so a call with an equal
+ * list hits the table even if the list was built again.
+ *
+ * A hit skips the specification checks too: each result is kept with the
+ * checks that the call which computed it passed, and only answers calls
+ * that need no more than those, whose checks, being pure, would pass
+ * again. So a result computed by a recursive call that the boundary policy
+ * left unchecked is not returned to a checked call. A function is memoized only if
+ * its body and spec are stateless, as are the functions they call, and
+ * none of its formals may hold a reference or vector: those are compared
+ * by identity, and their contents may change between calls.
+ *
+ * @author hridesh
+ *
+ */
+public class Memoizer {
+	static final int DEFAULT_SIZE = 1024;
+
+	private final int _size;
+	private final Map<LambdaExp, Boolean> _pure = new IdentityHashMap<LambdaExp, Boolean>();
+	private final PurityChecker.Stateless _checker = new PurityChecker.Stateless();
+	private long _hits = 0;
+	private long _misses = 0;
+
+	/**
+	 * @param size the number of results kept for each function.
+	 */
+	public Memoizer(int size) {
+		_size = size;
+	}
+
+	/**
+	 * @return a new table for a function value of e, or null if calls to it
+	 *         are not memoized.
+	 */
+	synchronized Table table(LambdaExp e) throws ProgramError {
+		Boolean pure = _pure.get(e);
+		if (pure == null) {
+			pure = _checker.check(e);
+			for (int i = 0; e.formal_types() != null && i < e.formal_types().size(); i++)
+				pure = pure && !mutable(e.formal_types().get(i));
+			_pure.put(e, pure);
+		}
+		return pure ? new Table() : null;
+	}
+
+	/**
+	 * @return true if values of type t may hold a reference or vector.
+	 */
+	private static boolean mutable(Type t) {
+		if (t instanceof Type.RefT || t instanceof Type.VecT)
+			return true;
+		if (t instanceof Type.ListT)
+			return mutable(((Type.ListT) t).fst());
+		if (t instanceof Type.PairT)
+			return mutable(((Type.PairT) t).fst()) || mutable(((Type.PairT) t).snd());
+		return false;
+	}
+
+	long hits() {
+		return _hits;
+	}
+
+	long misses() {
+		return _misses;
+	}
+
+	void resetCounts() {
+		_hits = 0;
+		_misses = 0;
+	}
+
+	/**
+	 * The results of the calls to one function value, least recently used
+	 * first.
+	 */
+	@SuppressWarnings("serial")
+	class Table extends LinkedHashMap<Table.Key, Table.Result> {
+
+		Table() {
+			super(16, 0.75f, true);
+		}
+
+		/**
+		 * @return the result of an earlier call with equal actuals that made
+		 *         at least checks, or null.
+		 */
+		Value get(Value[] actuals, ContractPolicy checks) {
+			synchronized (Memoizer.this) { // Specs may be checked in parallel
+				Result result = get(new Key(actuals));
+				if (result == null || !result._checks.covers(checks)) {
+					_misses++;
+					return null;
+				}
+				_hits++;
+				return result._value;
+			}
+		}
+
+		void put(Value[] actuals, Value value, ContractPolicy checks) {
+			synchronized (Memoizer.this) {
+				put(new Key(actuals), new Result(value, checks));
+			}
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+			return size() > _size;
+		}
+
+		private class Result {
+			private final Value _value;
+			private final ContractPolicy _checks;
+
+			Result(Value value, ContractPolicy checks) {
+				_value = value;
+				_checks = checks;
+			}
+		}
+
+		private class Key {
+			private final Value[] _actuals;
+			private final int _hash;
+
+			Key(Value[] actuals) {
+				_actuals = actuals;
+				_hash = Arrays.hashCode(actuals);
+			}
+
+			@Override
+			public boolean equals(Object o) {
+				return o instanceof Key && Arrays.equals(_actuals, ((Key) o)._actuals);
+			}
+
+			@Override
+			public int hashCode() {
+				return _hash;
+			}
+		}
+	}
+}
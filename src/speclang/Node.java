@@ -0,0 +1,1116 @@
+package speclang;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import speclang.AST.*;
+import speclang.Env.*;
+import speclang.Value.*;
+
+/**
+ * Executable nodes produced by the NodeCompiler from a checked program. A
+ * node holds its children, lexical addresses and constants already
+ * resolved, so running it does not dispatch through a visitor or walk the
+ * lists of the abstract syntax tree.
+ *
+ * @author hridesh
+ *
+ */
+public interface Node {
+	Value eval(Env<Value> env) throws ProgramError;
+
+	/**
+	 * Error messages print the source expression, as the Evaluator does.
+	 */
+	static String format(ASTNode n) throws ProgramError {
+		return n.accept(new Printer.Formatter(), null);
+	}
+
+	/**
+	 * Evaluates a node that is expected to produce a number, without boxing
+	 * the result. Throws UnexpectedResult if the node produces something else.
+	 */
+	default double evalNum(Env<Value> env) throws ProgramError {
+		Value value = eval(env);
+		if (value instanceof NumVal)
+			return ((NumVal) value).v();
+		throw new UnexpectedResult(value);
+	}
+
+	/**
+	 * Evaluates a node that is expected to produce a boolean, without boxing
+	 * the result. Throws UnexpectedResult if the node produces something else.
+	 */
+	default boolean evalBool(Env<Value> env) throws ProgramError {
+		Value value = eval(env);
+		if (value instanceof BoolVal)
+			return ((BoolVal) value).v();
+		throw new UnexpectedResult(value);
+	}
+
+	/**
+	 * Carries a value of an unexpected kind from evalNum or evalBool to the
+	 * node that asked for it, which deoptimizes itself.
+	 */
+	@SuppressWarnings("serial")
+	static class UnexpectedResult extends RuntimeException {
+		private final Value _value;
+
+		UnexpectedResult(Value value) {
+			super(null, null, false, false);
+			_value = value;
+		}
+
+		Value value() {
+			return _value;
+		}
+	}
+
+	static class Const implements Node {
+		private Value _val;
+
+		Const(Value val) {
+			_val = val;
+		}
+
+		public Value eval(Env<Value> env) {
+			return _val;
+		}
+
+		public double evalNum(Env<Value> env) {
+			if (_val instanceof NumVal)
+				return ((NumVal) _val).v();
+			throw new UnexpectedResult(_val);
+		}
+	}
+
+	static class Unit implements Node {
+		public Value eval(Env<Value> env) {
+			return UnitVal.v;
+		}
+	}
+
+	static class ErrorNode implements Node {
+		public Value eval(Env<Value> env) throws ProgramError {
+			throw new ProgramError("Encountered an error expression");
+		}
+	}
+
+	static class LocalVar implements Node {
+		private int _depth;
+		private int _slot;
+
+		LocalVar(int depth, int slot) {
+			_depth = depth;
+			_slot = slot;
+		}
+
+		public Value eval(Env<Value> env) {
+			return env.get(_depth, _slot);
+		}
+
+		public double evalNum(Env<Value> env) {
+			Value value = env.get(_depth, _slot);
+			if (value instanceof NumVal)
+				return ((NumVal) value).v();
+			throw new UnexpectedResult(value);
+		}
+	}
+
+	static class GlobalVar implements Node {
+		private GlobalEnv<Value> _globals;
+		private int _slot;
+
+		GlobalVar(GlobalEnv<Value> globals, int slot) {
+			_globals = globals;
+			_slot = slot;
+		}
+
+		public Value eval(Env<Value> env) {
+			return _globals.get(_slot);
+		}
+	}
+
+	static class NamedVar implements Node {
+		private String _name;
+
+		NamedVar(String name) {
+			_name = name;
+		}
+
+		public Value eval(Env<Value> env) {
+			return env.get(_name);
+		}
+	}
+
+	/**
+	 * A node that specializes itself on the values its children produce.
+	 * While they have all been numbers, the children are evaluated unboxed,
+	 * so nested arithmetic does not allocate intermediate results. The first
+	 * miss rewrites the node to the generic version for good, which boxes
+	 * and casts like the Evaluator.
+	 */
+	static abstract class Specializing implements Node {
+		boolean _generic = false;
+
+		double num(Node child, Env<Value> env) throws ProgramError {
+			if (!_generic) {
+				try {
+					return child.evalNum(env);
+				} catch (UnexpectedResult e) {
+					_generic = true; // Deoptimize
+					return ((NumVal) e.value()).v();
+				}
+			}
+			return ((NumVal) child.eval(env)).v();
+		}
+	}
+
+	static class Add extends Specializing {
+		private Node[] _operands;
+
+		Add(Node[] operands) {
+			_operands = operands;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return NumVal.of(evalNum(env));
+		}
+
+		public double evalNum(Env<Value> env) throws ProgramError {
+			int result = 0;
+			for (Node operand : _operands)
+				result += num(operand, env);
+			return result;
+		}
+	}
+
+	static class Sub extends Specializing {
+		private Node[] _operands;
+
+		Sub(Node[] operands) {
+			_operands = operands;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return NumVal.of(evalNum(env));
+		}
+
+		public double evalNum(Env<Value> env) throws ProgramError {
+			double result = num(_operands[0], env);
+			for (int i = 1; i < _operands.length; i++)
+				result = result - num(_operands[i], env);
+			return result;
+		}
+	}
+
+	static class Mult extends Specializing {
+		private Node[] _operands;
+
+		Mult(Node[] operands) {
+			_operands = operands;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return NumVal.of(evalNum(env));
+		}
+
+		public double evalNum(Env<Value> env) throws ProgramError {
+			double result = 1;
+			for (Node operand : _operands)
+				result *= num(operand, env);
+			return result;
+		}
+	}
+
+	static class Div extends Specializing {
+		private Node[] _operands;
+
+		Div(Node[] operands) {
+			_operands = operands;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return NumVal.of(evalNum(env));
+		}
+
+		public double evalNum(Env<Value> env) throws ProgramError {
+			double result = num(_operands[0], env);
+			for (int i = 1; i < _operands.length; i++)
+				result = result / num(_operands[i], env);
+			return result;
+		}
+	}
+
+	/**
+	 * Two-operand arithmetic, the common case, without the operand loop.
+	 */
+	static abstract class Binary extends Specializing {
+		private Node _first;
+		private Node _second;
+
+		Binary(Node first, Node second) {
+			_first = first;
+			_second = second;
+		}
+
+		abstract double apply(double first, double second);
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return NumVal.of(evalNum(env));
+		}
+
+		public double evalNum(Env<Value> env) throws ProgramError {
+			if (!_generic) {
+				double first;
+				try {
+					first = _first.evalNum(env);
+				} catch (UnexpectedResult e) {
+					_generic = true; // Deoptimize
+					return apply(((NumVal) e.value()).v(), ((NumVal) _second.eval(env)).v());
+				}
+				try {
+					return apply(first, _second.evalNum(env));
+				} catch (UnexpectedResult e) {
+					_generic = true;
+					return apply(first, ((NumVal) e.value()).v());
+				}
+			}
+			return apply(((NumVal) _first.eval(env)).v(), ((NumVal) _second.eval(env)).v());
+		}
+	}
+
+	static class Add2 extends Binary {
+		Add2(Node first, Node second) {
+			super(first, second);
+		}
+
+		double apply(double first, double second) {
+			// Sums are accumulated in an int, as in Add.
+			int result = (int) first;
+			result += second;
+			return result;
+		}
+	}
+
+	static class Sub2 extends Binary {
+		Sub2(Node first, Node second) {
+			super(first, second);
+		}
+
+		double apply(double first, double second) {
+			return first - second;
+		}
+	}
+
+	static class Mult2 extends Binary {
+		Mult2(Node first, Node second) {
+			super(first, second);
+		}
+
+		double apply(double first, double second) {
+			return first * second;
+		}
+	}
+
+	static class Div2 extends Binary {
+		Div2(Node first, Node second) {
+			super(first, second);
+		}
+
+		double apply(double first, double second) {
+			return first / second;
+		}
+	}
+
+	static abstract class Compare extends Specializing {
+		private Node _first;
+		private Node _second;
+
+		Compare(Node first, Node second) {
+			_first = first;
+			_second = second;
+		}
+
+		abstract boolean test(double first, double second);
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return BoolVal.of(evalBool(env));
+		}
+
+		public boolean evalBool(Env<Value> env) throws ProgramError {
+			if (!_generic) {
+				double first;
+				try {
+					first = _first.evalNum(env);
+				} catch (UnexpectedResult e) {
+					_generic = true; // Deoptimize
+					return test(((NumVal) e.value()).v(), ((NumVal) _second.eval(env)).v());
+				}
+				try {
+					return test(first, _second.evalNum(env));
+				} catch (UnexpectedResult e) {
+					_generic = true;
+					return test(first, ((NumVal) e.value()).v());
+				}
+			}
+			return test(((NumVal) _first.eval(env)).v(), ((NumVal) _second.eval(env)).v());
+		}
+	}
+
+	static class Less extends Compare {
+		Less(Node first, Node second) {
+			super(first, second);
+		}
+
+		boolean test(double first, double second) {
+			return first < second;
+		}
+	}
+
+	static class LessEq extends Compare {
+		LessEq(Node first, Node second) {
+			super(first, second);
+		}
+
+		boolean test(double first, double second) {
+			return first <= second;
+		}
+	}
+
+	static class Equal extends Compare {
+		Equal(Node first, Node second) {
+			super(first, second);
+		}
+
+		boolean test(double first, double second) {
+			return first == second;
+		}
+	}
+
+	static class Greater extends Compare {
+		Greater(Node first, Node second) {
+			super(first, second);
+		}
+
+		boolean test(double first, double second) {
+			return first > second;
+		}
+	}
+
+	static class GreaterEq extends Compare {
+		GreaterEq(Node first, Node second) {
+			super(first, second);
+		}
+
+		boolean test(double first, double second) {
+			return first >= second;
+		}
+	}
+
+	/**
+	 * Evaluates its condition unboxed until it sees a non-boolean, and passes
+	 * evalNum and evalBool on to the branches.
+	 */
+	static class If implements Node {
+		private IfExp _e;
+		private Node _conditional;
+		private Node _then;
+		private Node _else;
+		private boolean _generic = false;
+
+		If(IfExp e, Node conditional, Node then_node, Node else_node) {
+			_e = e;
+			_conditional = conditional;
+			_then = then_node;
+			_else = else_node;
+		}
+
+		private boolean condition(Env<Value> env) throws ProgramError {
+			Value result;
+			if (!_generic) {
+				try {
+					return _conditional.evalBool(env);
+				} catch (UnexpectedResult e) {
+					_generic = true; // Deoptimize
+					result = e.value();
+				}
+			} else
+				result = _conditional.eval(env);
+			if (!(result instanceof BoolVal))
+				throw new ProgramError("Condition not a boolean in expression " + format(_e));
+			return ((BoolVal) result).v();
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return condition(env) ? _then.eval(env) : _else.eval(env);
+		}
+
+		public double evalNum(Env<Value> env) throws ProgramError {
+			return condition(env) ? _then.evalNum(env) : _else.evalNum(env);
+		}
+
+		public boolean evalBool(Env<Value> env) throws ProgramError {
+			return condition(env) ? _then.evalBool(env) : _else.evalBool(env);
+		}
+	}
+
+	static class Let implements Node {
+		private List<String> _names;
+		private Node[] _values;
+		private Node _body;
+
+		Let(List<String> names, Node[] values, Node body) {
+			_names = names;
+			_values = values;
+			_body = body;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			Value[] values = new Value[_values.length];
+			for (int i = 0; i < values.length; i++)
+				values[i] = _values[i].eval(env);
+			return _body.eval(new ExtendEnvFrame<>(env, _names, values));
+		}
+	}
+
+	static class Letrec implements Node {
+		private List<String> _names;
+		private Node[] _funs;
+		private Node _body;
+
+		Letrec(List<String> names, Node[] funs, Node body) {
+			_names = names;
+			_funs = funs;
+			_body = body;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			ExtendEnvRec new_env = new ExtendEnvRec(env, _names);
+			for (int i = 0; i < _funs.length; i++)
+				new_env.bind(i, (FunVal) _funs[i].eval(new_env));
+			return _body.eval(new_env);
+		}
+	}
+
+	static class Define implements Node {
+		private NodeCompiler _engine;
+		private GlobalEnv<Value> _globals;
+		private String _name;
+		private int _slot;
+		private Node _value;
+
+		Define(NodeCompiler engine, GlobalEnv<Value> globals, String name, int slot, Node value) {
+			_engine = engine;
+			_globals = globals;
+			_name = name;
+			_slot = slot;
+			_value = value;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			Value value = _value.eval(env);
+			int slot = _slot;
+			if (slot < 0) // Not resolved
+				slot = _globals.define(_name);
+			_globals.set(slot, _engine.withPolicy(_name, value));
+			return UnitVal.v;
+		}
+	}
+
+	static class ProgramNode implements Node {
+		private Node[] _decls;
+		private Node _e;
+
+		ProgramNode(Node[] decls, Node e) {
+			_decls = decls;
+			_e = e;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			for (Node decl : _decls)
+				decl.eval(env);
+			return _e.eval(env);
+		}
+	}
+
+	/**
+	 * The preconditions and postconditions of each specification case.
+	 */
+	static class Contract {
+		private SpecCase[] _cases;
+		private Node[][] _pre;
+		private Node[][] _post;
+		private int _shared;
+
+		Contract(SpecCase[] cases, Node[][] pre, Node[][] post, int shared) {
+			_cases = cases;
+			_pre = pre;
+			_post = post;
+			_shared = shared;
+		}
+
+		/**
+		 * @return the environment in which the conditions are checked for a
+		 *         call whose formals are bound by fun_env.
+		 */
+		Env<Value> env(Env<Value> fun_env) {
+			return _shared == 0 ? fun_env : new MemoEnv<>(fun_env, _shared);
+		}
+
+		/**
+		 * @return the index of the first case whose preconditions hold, or -1.
+		 */
+		int select(Env<Value> env) throws ProgramError {
+			for (int i = 0; i < _cases.length; i++)
+				if (holds(_cases[i], _pre[i], env))
+					return i;
+			return -1;
+		}
+
+		boolean post(int speccase, Env<Value> env) throws ProgramError {
+			return holds(_cases[speccase], _post[speccase], env);
+		}
+
+		private static boolean holds(SpecCase s, Node[] conditions, Env<Value> env) throws ProgramError {
+			for (Node condition : conditions) {
+				Value value = condition.eval(env);
+				if (!(value instanceof BoolVal))
+					throw new ProgramError("Condition not a boolean in expression" + format(s));
+				if (!((BoolVal) value).v())
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A function value whose body and specification have been compiled.
+	 * With a BytecodeCompiler, a closure that is called often is compiled
+	 * further to JVM bytecode if its body allows.
+	 */
+	static class Closure extends FunVal {
+		private LambdaExp _e;
+		private Node _code;
+		private Contract _contract;
+		private BytecodeCompiler _jit;
+		private int _calls = 0;
+		private BytecodeCompiler.Code _native = null;
+
+		Closure(Env<Value> env, LambdaExp e, Node code, Contract contract, BytecodeCompiler jit) {
+			super(env, e.formals(), e.spec(), e.body());
+			_e = e;
+			_code = code;
+			_contract = contract;
+			_jit = jit;
+		}
+
+		LambdaExp lambda() {
+			return _e;
+		}
+
+		Node code() {
+			return _code;
+		}
+
+		Contract contract() {
+			return _contract;
+		}
+
+		/**
+		 * Runs the body in fun_env, which binds the formals to actuals. The
+		 * compiled code checks the calls of the function to itself under the
+		 * contract policy of the call that compiles it. A primitive makes its
+		 * calls through caller.
+		 */
+		Value run(Env<Value> fun_env, Value[] actuals, ContractPolicy policy, Primitives.Caller caller)
+				throws ProgramError {
+			if (_code instanceof Primitive)
+				return ((Primitive) _code).apply(fun_env, caller);
+			if (_native != null)
+				return _native.run(actuals);
+			if (_jit != null && ++_calls == _jit.threshold()) {
+				_native = _jit.compile(this, policy);
+				if (_native != null)
+					return _native.run(actuals);
+				_jit = null; // Not compilable, do not try again
+			}
+			return _code.eval(fun_env);
+		}
+	}
+
+	static class Lambda implements Node {
+		private LambdaExp _e;
+		private Node _body;
+		private Contract _contract;
+		private BytecodeCompiler _jit;
+		private Memoizer _memoizer;
+
+		Lambda(LambdaExp e, Node body, Contract contract, BytecodeCompiler jit, Memoizer memoizer) {
+			_e = e;
+			_body = body;
+			_contract = contract;
+			_jit = jit;
+			_memoizer = memoizer;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			Closure closure = new Closure(env, _e, _body, _contract, _jit);
+			if (_memoizer != null)
+				closure.setMemo(_memoizer.table(_e));
+			return closure;
+		}
+	}
+
+	static class Call implements Node, Primitives.Caller {
+		private NodeCompiler _engine;
+		private CallExp _e;
+		private Node _operator;
+		private Node[] _operands;
+		private Node[] _sites = null; // The calls made by a primitive this calls
+
+		Call(NodeCompiler engine, CallExp e, Node operator, Node[] operands) {
+			_engine = engine;
+			_e = e;
+			_operator = operator;
+			_operands = operands;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			Value result = _operator.eval(env);
+			if (!(result instanceof Closure))
+				throw new ProgramError("Operator not a function in call" + format(_e));
+			Closure operator = (Closure) result;
+
+			// Call-by-value semantics
+			Value[] actuals = new Value[_operands.length];
+			for (int i = 0; i < actuals.length; i++)
+				actuals[i] = _operands[i].eval(env);
+
+			List<String> formals = operator.formals();
+			if (formals.size() != actuals.length)
+				throw new ProgramError("Argument mismatch in call" + format(_e));
+			// Runtime verification of specifications, as far as the contract
+			// policy asks.
+			ContractPolicy policy = _engine.policy(operator);
+			ContractPolicy checks = policy.at(_e);
+			Memoizer.Table memo = operator.memo();
+			if (memo != null) {
+				Value cached = memo.get(actuals, checks);
+				if (cached != null)
+					return cached;
+			}
+			Env<Value> fun_env = new ExtendEnvFrame<>(operator.env(), formals, actuals);
+
+			if (checks == ContractPolicy.OFF)
+				return remember(memo, actuals, operator.run(fun_env, actuals, policy, this), checks);
+			Contract contract = operator.contract();
+			Env<Value> spec_env = contract.env(fun_env);
+			int speccase = contract.select(spec_env);
+			if (speccase < 0)
+				throw new ProgramError("Precondition violation in call:" + format(_e));
+			Value fresult = operator.run(fun_env, actuals, policy, this);
+			if (checks == ContractPolicy.PRE)
+				return remember(memo, actuals, fresult, checks);
+			if (contract.post(speccase, new ExtendEnv<>(spec_env, "result", fresult)))
+				return remember(memo, actuals, fresult, checks);
+			throw new ProgramError("Postcondition violation in call:" + format(_e));
+		}
+
+		/**
+		 * Calls f on args for a primitive that this calls, which reports
+		 * errors as this call.
+		 */
+		public Value call(Value f, Value... args) throws ProgramError {
+			if (_sites == null)
+				_sites = new Node[3];
+			return _engine.callback(_sites, _e, f, args);
+		}
+
+		private static Value remember(Memoizer.Table memo, Value[] actuals, Value fresult, ContractPolicy checks) {
+			if (memo != null)
+				memo.put(actuals, fresult, checks);
+			return fresult;
+		}
+	}
+
+	/**
+	 * A subexpression shared by the conditions of a contract, computed at
+	 * most once per call.
+	 */
+	static class Shared implements Node {
+		private int _index;
+		private Node _exp;
+
+		Shared(int index, Node exp) {
+			_index = index;
+			_exp = exp;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			MemoEnv<Value> memo = MemoEnv.of(env);
+			Value value = memo.memo(_index);
+			if (value == null) {
+				value = _exp.eval(memo);
+				memo.memo(_index, value);
+			}
+			return value;
+		}
+	}
+
+	static class Car implements Node {
+		private Node _arg;
+
+		Car(Node arg) {
+			_arg = arg;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return ((PairVal) _arg.eval(env)).fst();
+		}
+	}
+
+	static class Cdr implements Node {
+		private Node _arg;
+
+		Cdr(Node arg) {
+			_arg = arg;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return ((PairVal) _arg.eval(env)).snd();
+		}
+	}
+
+	static class Cons implements Node {
+		private Node _fst;
+		private Node _snd;
+
+		Cons(Node fst, Node snd) {
+			_fst = fst;
+			_snd = snd;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			Value first = _fst.eval(env);
+			Value second = _snd.eval(env);
+			return new PairVal(first, second);
+		}
+	}
+
+	static class ListNode implements Node {
+		private Node[] _elems;
+
+		ListNode(Node[] elems) {
+			_elems = elems;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			int length = _elems.length;
+			if (length == 0)
+				return Null.v;
+
+			// Order of evaluation: left to right
+			Value[] elems = new Value[length];
+			for (int i = 0; i < length; i++)
+				elems[i] = _elems[i].eval(env);
+			return ListVal.of(elems);
+		}
+	}
+
+	static class Vector implements Node {
+		private Node[] _elems;
+
+		Vector(Node[] elems) {
+			_elems = elems;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			// Order of evaluation: left to right
+			Value[] elems = new Value[_elems.length];
+			for (int i = 0; i < elems.length; i++)
+				elems[i] = _elems[i].eval(env);
+			return VectorVal.of(elems);
+		}
+	}
+
+	static class MakeVector implements Node {
+		private Node _size;
+		private Node _init;
+
+		MakeVector(Node size, Node init) {
+			_size = size;
+			_init = init;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			Value size = _size.eval(env);
+			return VectorVal.make(size, _init.eval(env));
+		}
+	}
+
+	static class VectorRef implements Node {
+		private Node _vec;
+		private Node _index;
+
+		VectorRef(Node vec, Node index) {
+			_vec = vec;
+			_index = index;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			VectorVal vec = (VectorVal) _vec.eval(env);
+			return vec.get(_index.eval(env));
+		}
+	}
+
+	static class VectorLength implements Node {
+		private Node _vec;
+
+		VectorLength(Node vec) {
+			_vec = vec;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return NumVal.of(((VectorVal) _vec.eval(env)).length());
+		}
+	}
+
+	static class VectorSet implements Node {
+		private Node _vec;
+		private Node _index;
+		private Node _value;
+
+		VectorSet(Node vec, Node index, Node value) {
+			_vec = vec;
+			_index = index;
+			_value = value;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			VectorVal vec = (VectorVal) _vec.eval(env);
+			Value index = _index.eval(env);
+			return vec.set(index, _value.eval(env));
+		}
+	}
+
+	/**
+	 * The null?, list?, pair?, ... predicates, which test the shape of a value.
+	 */
+	static abstract class Predicate implements Node {
+		private Node _arg;
+
+		Predicate(Node arg) {
+			_arg = arg;
+		}
+
+		abstract boolean test(Value val);
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return BoolVal.of(test(_arg.eval(env)));
+		}
+	}
+
+	static class IsNull extends Predicate {
+		IsNull(Node arg) {
+			super(arg);
+		}
+
+		boolean test(Value val) {
+			return val instanceof Null;
+		}
+	}
+
+	static class IsList extends Predicate {
+		IsList(Node arg) {
+			super(arg);
+		}
+
+		boolean test(Value val) {
+			return val instanceof PairVal && ((PairVal) val).isList() || val instanceof Null;
+		}
+	}
+
+	static class IsPair extends Predicate {
+		IsPair(Node arg) {
+			super(arg);
+		}
+
+		boolean test(Value val) {
+			return val instanceof PairVal;
+		}
+	}
+
+	static class IsUnit extends Predicate {
+		IsUnit(Node arg) {
+			super(arg);
+		}
+
+		boolean test(Value val) {
+			return val instanceof UnitVal;
+		}
+	}
+
+	static class IsProcedure extends Predicate {
+		IsProcedure(Node arg) {
+			super(arg);
+		}
+
+		boolean test(Value val) {
+			return val instanceof FunVal;
+		}
+	}
+
+	static class IsString extends Predicate {
+		IsString(Node arg) {
+			super(arg);
+		}
+
+		boolean test(Value val) {
+			return val instanceof StringVal;
+		}
+	}
+
+	static class IsNumber extends Predicate {
+		IsNumber(Node arg) {
+			super(arg);
+		}
+
+		boolean test(Value val) {
+			return val instanceof NumVal;
+		}
+	}
+
+	static class IsBoolean extends Predicate {
+		IsBoolean(Node arg) {
+			super(arg);
+		}
+
+		boolean test(Value val) {
+			return val instanceof BoolVal;
+		}
+	}
+
+	static class Ref implements Node {
+		private NodeCompiler _engine;
+		private Node _value;
+
+		Ref(NodeCompiler engine, Node value) {
+			_engine = engine;
+			_value = value;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return _engine.heap.ref(_value.eval(env));
+		}
+	}
+
+	static class Deref implements Node {
+		private NodeCompiler _engine;
+		private Node _loc;
+
+		Deref(NodeCompiler engine, Node loc) {
+			_engine = engine;
+			_loc = loc;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return _engine.heap.deref((RefVal) _loc.eval(env));
+		}
+	}
+
+	static class Assign implements Node {
+		private NodeCompiler _engine;
+		private Node _lhs;
+		private Node _rhs;
+
+		Assign(NodeCompiler engine, Node lhs, Node rhs) {
+			_engine = engine;
+			_lhs = lhs;
+			_rhs = rhs;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			// Note the order of evaluation below.
+			Value rhs_val = _rhs.eval(env);
+			RefVal loc = (RefVal) _lhs.eval(env);
+			return _engine.heap.setref(loc, rhs_val);
+		}
+	}
+
+	static class Free implements Node {
+		private NodeCompiler _engine;
+		private Node _value;
+
+		Free(NodeCompiler engine, Node value) {
+			_engine = engine;
+			_value = value;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			_engine.heap.free((RefVal) _value.eval(env));
+			return UnitVal.v;
+		}
+	}
+
+	static class Eval implements Node {
+		private NodeCompiler _engine;
+		private Node _code;
+
+		Eval(NodeCompiler engine, Node code) {
+			_engine = engine;
+			_code = code;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			StringVal programText = (StringVal) _code.eval(env);
+			return _engine.eval(programText.v());
+		}
+	}
+
+	static class Primitive implements Node {
+		private NodeCompiler _engine;
+		private Primitives.Primitive _primitive;
+		private Node[] _args;
+
+		Primitive(NodeCompiler engine, Primitives.Primitive primitive, Node[] args) {
+			_engine = engine;
+			_primitive = primitive;
+			_args = args;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			return apply(env, _engine::callback);
+		}
+
+		/**
+		 * @return the value of the primitive in env, for a call that makes
+		 *         the calls of the primitive through caller.
+		 */
+		Value apply(Env<Value> env, Primitives.Caller caller) throws ProgramError {
+			Value[] actuals = new Value[_args.length];
+			for (int i = 0; i < actuals.length; i++)
+				actuals[i] = _args[i].eval(env);
+			return _primitive.apply(actuals, caller);
+		}
+	}
+
+	static class Read implements Node {
+		private Node _file;
+
+		Read(Node file) {
+			_file = file;
+		}
+
+		public Value eval(Env<Value> env) throws ProgramError {
+			StringVal fileName = (StringVal) _file.eval(env);
+			try {
+				String text = Reader.readFile("" + System.getProperty("user.dir") + File.separator + fileName.v());
+				return new StringVal(text);
+			} catch (IOException ex) {
+				throw new ProgramError(ex.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package speclang;
+
+import static speclang.Heap.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import speclang.AST.*;
+import speclang.Env.*;
+import speclang.Value.*;
+
+/**
+ * An alternative execution engine. Instead of walking the abstract syntax
+ * tree on every evaluation, as the Evaluator does, it compiles a checked and
+ * resolved program once into a tree of Node objects and runs that tree. The
+ * results and the error messages are the same as the Evaluator's.
+ *
+ * @author hridesh
+ *
+ */
+public class NodeCompiler implements Visitor<Node, Void> {
+
+	private final GlobalEnv<Value> initEnv = new GlobalEnv<>();
+
+	private final Resolver resolver = new Resolver(initEnv);
+
+	Heap heap = null;
+
+	private BytecodeCompiler jit = null;
+
+	private Memoizer memoizer = null;
+
+	private ContractPolicy _policy = ContractPolicy.FULL;
+
+	private final Map<String, ContractPolicy> _policies = new HashMap<String, ContractPolicy>();
+
+	/**
+	 * As Evaluator.setContractPolicy(policy).
+	 */
+	public void setContractPolicy(ContractPolicy policy) {
+		_policy = policy;
+	}
+
+	/**
+	 * As Evaluator.setContractPolicy(name, policy).
+	 */
+	public void setContractPolicy(String name, ContractPolicy policy) {
+		_policies.put(name, policy);
+	}
+
+	ContractPolicy policy(FunVal operator) {
+		ContractPolicy policy = operator.policy();
+		return policy != null ? policy : _policy;
+	}
+
+	Value withPolicy(String name, Value value) {
+		ContractPolicy policy = _policies.get(name);
+		if (policy != null && value instanceof FunVal)
+			((FunVal) value).setPolicy(policy);
+		return value;
+	}
+
+	/**
+	 * Compile functions to JVM bytecode once they have been called threshold
+	 * times.
+	 */
+	NodeCompiler jit(int threshold) {
+		jit = new BytecodeCompiler(initEnv, threshold);
+		return this;
+	}
+
+	/**
+	 * Remember the results of calls to pure functions.
+	 */
+	NodeCompiler memoize(Memoizer m) {
+		memoizer = m;
+		return this;
+	}
+
+	Value valueOf(Program p) throws ProgramError {
+		heap = new Heap16Bit();
+		return compile(p).eval(initEnv);
+	}
+
+	Node compile(ASTNode n) throws ProgramError {
+		return n.accept(this, null);
+	}
+
+	/**
+	 * Parse, resolve, compile and run a program given as text, for eval.
+	 */
+	Value eval(String programText) throws ProgramError {
+		Program p = _reader.parse(programText);
+		resolver.resolve(p);
+		return compile(p).eval(initEnv);
+	}
+
+	private Node[] compileAll(List<Exp> exps) throws ProgramError {
+		Node[] nodes = new Node[exps.size()];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = exps.get(i).accept(this, null);
+		return nodes;
+	}
+
+	public Node visit(Program p, Env<Void> env) throws ProgramError {
+		List<DefineDecl> decls = p.decls();
+		Node[] decl_nodes = new Node[decls.size()];
+		for (int i = 0; i < decl_nodes.length; i++)
+			decl_nodes[i] = decls.get(i).accept(this, env);
+		return new Node.ProgramNode(decl_nodes, p.e().accept(this, env));
+	}
+
+	public Node visit(DefineDecl d, Env<Void> env) throws ProgramError {
+		return new Node.Define(this, initEnv, d.name(), d.slot(), d.value_exp().accept(this, env));
+	}
+
+	public Node visit(VarExp e, Env<Void> env) throws ProgramError {
+		int depth = e.depth();
+		if (depth >= 0)
+			return new Node.LocalVar(depth, e.slot());
+		if (depth == VarExp.GLOBAL)
+			return new Node.GlobalVar(initEnv, e.slot());
+		return new Node.NamedVar(e.name());
+	}
+
+	public Node visit(UnitExp e, Env<Void> env) throws ProgramError {
+		return new Node.Unit();
+	}
+
+	public Node visit(NumExp e, Env<Void> env) throws ProgramError {
+		return new Node.Const(e.value());
+	}
+
+	public Node visit(StrExp e, Env<Void> env) throws ProgramError {
+		return new Node.Const(new StringVal(e.v()));
+	}
+
+	public Node visit(BoolExp e, Env<Void> env) throws ProgramError {
+		return new Node.Const(BoolVal.of(e.v()));
+	}
+
+	public Node visit(ErrorExp e, Env<Void> env) throws ProgramError {
+		return new Node.ErrorNode();
+	}
+
+	public Node visit(AddExp e, Env<Void> env) throws ProgramError {
+		Node[] operands = compileAll(e.all());
+		if (operands.length == 2)
+			return new Node.Add2(operands[0], operands[1]);
+		return new Node.Add(operands);
+	}
+
+	public Node visit(SubExp e, Env<Void> env) throws ProgramError {
+		Node[] operands = compileAll(e.all());
+		if (operands.length == 2)
+			return new Node.Sub2(operands[0], operands[1]);
+		return new Node.Sub(operands);
+	}
+
+	public Node visit(MultExp e, Env<Void> env) throws ProgramError {
+		Node[] operands = compileAll(e.all());
+		if (operands.length == 2)
+			return new Node.Mult2(operands[0], operands[1]);
+		return new Node.Mult(operands);
+	}
+
+	public Node visit(DivExp e, Env<Void> env) throws ProgramError {
+		Node[] operands = compileAll(e.all());
+		if (operands.length == 2)
+			return new Node.Div2(operands[0], operands[1]);
+		return new Node.Div(operands);
+	}
+
+	public Node visit(LessExp e, Env<Void> env) throws ProgramError {
+		return new Node.Less(e.first_exp().accept(this, env), e.second_exp().accept(this, env));
+	}
+
+	public Node visit(LessEqExp e, Env<Void> env) throws ProgramError {
+		return new Node.LessEq(e.first_exp().accept(this, env), e.second_exp().accept(this, env));
+	}
+
+	public Node visit(EqualExp e, Env<Void> env) throws ProgramError {
+		return new Node.Equal(e.first_exp().accept(this, env), e.second_exp().accept(this, env));
+	}
+
+	public Node visit(GreaterExp e, Env<Void> env) throws ProgramError {
+		return new Node.Greater(e.first_exp().accept(this, env), e.second_exp().accept(this, env));
+	}
+
+	public Node visit(GreaterEqExp e, Env<Void> env) throws ProgramError {
+		return new Node.GreaterEq(e.first_exp().accept(this, env), e.second_exp().accept(this, env));
+	}
+
+	public Node visit(IfExp e, Env<Void> env) throws ProgramError {
+		return new Node.If(e, e.conditional().accept(this, env), e.then_exp().accept(this, env),
+				e.else_exp().accept(this, env));
+	}
+
+	public Node visit(LetExp e, Env<Void> env) throws ProgramError {
+		return new Node.Let(e.names(), compileAll(e.value_exps()), e.body().accept(this, env));
+	}
+
+	public Node visit(LetrecExp e, Env<Void> env) throws ProgramError {
+		return new Node.Letrec(e.names(), compileAll(e.fun_exps()), e.body().accept(this, env));
+	}
+
+	public Node visit(LambdaExp e, Env<Void> env) throws ProgramError {
+		return new Node.Lambda(e, e.body().accept(this, env), contract((FuncSpec) e.spec()), jit, memoizer);
+	}
+
+	private Node.Contract contract(FuncSpec s) throws ProgramError {
+		if (s == null)
+			return null;
+		List<SpecCase> speccases = s.speccases();
+		int size = speccases.size();
+		SpecCase[] cases = speccases.toArray(new SpecCase[size]);
+		Node[][] pre = new Node[size][];
+		Node[][] post = new Node[size][];
+		for (int i = 0; i < size; i++) {
+			pre[i] = compileAll(cases[i].checkedPreconditions());
+			post[i] = compileAll(cases[i].checkedPostconditions());
+		}
+		return new Node.Contract(cases, pre, post, s.shared().size());
+	}
+
+	public Node visit(CallExp e, Env<Void> env) throws ProgramError {
+		return new Node.Call(this, e, e.operator().accept(this, env), compileAll(e.operands()));
+	}
+
+	public Node visit(CarExp e, Env<Void> env) throws ProgramError {
+		return new Node.Car(e.arg().accept(this, env));
+	}
+
+	public Node visit(CdrExp e, Env<Void> env) throws ProgramError {
+		return new Node.Cdr(e.arg().accept(this, env));
+	}
+
+	public Node visit(ConsExp e, Env<Void> env) throws ProgramError {
+		return new Node.Cons(e.fst().accept(this, env), e.snd().accept(this, env));
+	}
+
+	public Node visit(ListExp e, Env<Void> env) throws ProgramError {
+		return new Node.ListNode(compileAll(e.elems()));
+	}
+
+	public Node visit(VectorExp e, Env<Void> env) throws ProgramError {
+		return new Node.Vector(compileAll(e.elems()));
+	}
+
+	public Node visit(MakeVectorExp e, Env<Void> env) throws ProgramError {
+		return new Node.MakeVector(e.size().accept(this, env), e.init().accept(this, env));
+	}
+
+	public Node visit(VectorRefExp e, Env<Void> env) throws ProgramError {
+		return new Node.VectorRef(e.vec().accept(this, env), e.index().accept(this, env));
+	}
+
+	public Node visit(VectorLengthExp e, Env<Void> env) throws ProgramError {
+		return new Node.VectorLength(e.vec().accept(this, env));
+	}
+
+	public Node visit(VectorSetExp e, Env<Void> env) throws ProgramError {
+		return new Node.VectorSet(e.vec().accept(this, env), e.index().accept(this, env),
+				e.value_exp().accept(this, env));
+	}
+
+	public Node visit(NullExp e, Env<Void> env) throws ProgramError {
+		return new Node.IsNull(e.arg().accept(this, env));
+	}
+
+	public Node visit(IsNullExp e, Env<Void> env) throws ProgramError {
+		return new Node.IsNull(e.exp().accept(this, env));
+	}
+
+	public Node visit(IsProcedureExp e, Env<Void> env) throws ProgramError {
+		return new Node.IsProcedure(e.exp().accept(this, env));
+	}
+
+	public Node visit(IsListExp e, Env<Void> env) throws ProgramError {
+		return new Node.IsList(e.exp().accept(this, env));
+	}
+
+	public Node visit(IsPairExp e, Env<Void> env) throws ProgramError {
+		return new Node.IsPair(e.exp().accept(this, env));
+	}
+
+	public Node visit(IsUnitExp e, Env<Void> env) throws ProgramError {
+		return new Node.IsUnit(e.exp().accept(this, env));
+	}
+
+	public Node visit(IsNumberExp e, Env<Void> env) throws ProgramError {
+		return new Node.IsNumber(e.exp().accept(this, env));
+	}
+
+	public Node visit(IsStringExp e, Env<Void> env) throws ProgramError {
+		return new Node.IsString(e.exp().accept(this, env));
+	}
+
+	public Node visit(IsBooleanExp e, Env<Void> env) throws ProgramError {
+		return new Node.IsBoolean(e.exp().accept(this, env));
+	}
+
+	public Node visit(RefExp e, Env<Void> env) throws ProgramError {
+		return new Node.Ref(this, e.value_exp().accept(this, env));
+	}
+
+	public Node visit(DerefExp e, Env<Void> env) throws ProgramError {
+		return new Node.Deref(this, e.loc_exp().accept(this, env));
+	}
+
+	public Node visit(AssignExp e, Env<Void> env) throws ProgramError {
+		return new Node.Assign(this, e.lhs_exp().accept(this, env), e.rhs_exp().accept(this, env));
+	}
+
+	public Node visit(FreeExp e, Env<Void> env) throws ProgramError {
+		return new Node.Free(this, e.value_exp().accept(this, env));
+	}
+
+	public Node visit(SharedExp e, Env<Void> env) throws ProgramError {
+		return new Node.Shared(e.index(), e.exp().accept(this, env));
+	}
+
+	public Node visit(EvalExp e, Env<Void> env) throws ProgramError {
+		return new Node.Eval(this, e.code().accept(this, env));
+	}
+
+	public Node visit(PrimitiveExp e, Env<Void> env) throws ProgramError {
+		return new Node.Primitive(this, e.primitive(), compileAll(e.args()));
+	}
+
+	public Node visit(ReadExp e, Env<Void> env) throws ProgramError {
+		return new Node.Read(e.file().accept(this, env));
+	}
+
+	public Node visit(FuncSpec s, Env<Void> env) throws ProgramError {
+		throw new ProgramError("Specifications are compiled along with their lambda expression");
+	}
+
+	public Node visit(SpecCase s, Env<Void> env) throws ProgramError {
+		throw new ProgramError("Specification cases are compiled along with their lambda expression");
+	}
+
+	/**
+	 * The same built-in procedures as Evaluator.initialEnv(), compiled.
+	 */
+	private void initialEnv() throws ProgramError {
+		List<String> formals = new ArrayList<>();
+		formals.add("file");
+		List<Type> types = new ArrayList<>();
+		types.add(Type.StringT.getInstance());
+
+		/* Procedure: (read <filename>) */
+		Exp body = new AST.ReadExp(new VarExp("file"));
+		define("read", new LambdaExp(formals, types, null, body));
+
+		/* Procedure: (require <filename>) */
+		body = new EvalExp(new AST.ReadExp(new VarExp("file")));
+		define("require", new LambdaExp(formals, types, null, body));
+
+		/* The list procedures of Primitives */
+		for (Primitives.Primitive primitive : Primitives.all())
+			define(primitive.name(), Primitives.lambda(primitive));
+	}
+
+	private final Node[] sites = new Node[3];
+
+	/**
+	 * Calls f on args for a primitive, as a call expression would.
+	 */
+	Value callback(Value f, Value... args) throws ProgramError {
+		return callback(sites, null, f, args);
+	}
+
+	/**
+	 * Calls f on args for a primitive that origin calls, with the compiled
+	 * call expressions kept in sites.
+	 */
+	Value callback(Node[] sites, CallExp origin, Value f, Value... args) throws ProgramError {
+		if (sites[args.length] == null)
+			sites[args.length] = compile(Primitives.site(args, origin));
+		return sites[args.length].eval(Primitives.frame(initEnv, f, args));
+	}
+
+	private void define(String name, LambdaExp fun) throws ProgramError {
+		fun.accept(resolver, null);
+		initEnv.set(initEnv.define(name), compile(fun).eval(initEnv));
+	}
+
+	Resolver resolver() {
+		return resolver;
+	}
+
+	Reader _reader;
+
+	public NodeCompiler(Reader reader) {
+		_reader = reader;
+		try {
+			initialEnv();
+		} catch (ProgramError e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
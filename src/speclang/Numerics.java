@@ -0,0 +1,105 @@
+package speclang;
+
+/**
+ * The loops over arrays of numbers behind the bulk primitives on vectors.
+ * When the JVM runs with the jdk.incubator.vector module, as the build
+ * configures it to, they are SimdNumerics, which processes several
+ * elements per instruction. SimdNumerics is compiled apart, from simd/, so
+ * that this source tree builds without the module. Without it, or with
+ * -Dspeclang.scalar=true, they are plain Java loops.
+ *
+ * The SIMD loops add and multiply in a different order than the scalar
+ * ones, so the sums, products and dot products they compute may differ in
+ * their last digits.
+ *
+ * @author hridesh
+ *
+ */
+abstract class Numerics {
+	static final Numerics INSTANCE = load();
+
+	abstract double sum(double[] v);
+
+	abstract double product(double[] v);
+
+	abstract double dot(double[] x, double[] y);
+
+	/**
+	 * @return the least element of v, which is not empty.
+	 */
+	abstract double min(double[] v);
+
+	abstract double max(double[] v);
+
+	/**
+	 * @return a * x, element-wise.
+	 */
+	abstract double[] scale(double a, double[] x);
+
+	/**
+	 * @return a * x + y, element-wise, for x and y of the same length.
+	 */
+	abstract double[] axpy(double a, double[] x, double[] y);
+
+	private static Numerics load() {
+		if (!Boolean.getBoolean("speclang.scalar") && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				return (Numerics) Class.forName("speclang.SimdNumerics").getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// Fall back to the scalar loops
+			}
+		}
+		return new Scalar();
+	}
+
+	static class Scalar extends Numerics {
+		double sum(double[] v) {
+			double sum = 0;
+			for (int i = 0; i < v.length; i++)
+				sum += v[i];
+			return sum;
+		}
+
+		double product(double[] v) {
+			double product = 1;
+			for (int i = 0; i < v.length; i++)
+				product *= v[i];
+			return product;
+		}
+
+		double dot(double[] x, double[] y) {
+			double dot = 0;
+			for (int i = 0; i < x.length; i++)
+				dot += x[i] * y[i];
+			return dot;
+		}
+
+		double min(double[] v) {
+			double min = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < v.length; i++)
+				min = Math.min(min, v[i]);
+			return min;
+		}
+
+		double max(double[] v) {
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < v.length; i++)
+				max = Math.max(max, v[i]);
+			return max;
+		}
+
+		double[] scale(double a, double[] x) {
+			double[] result = new double[x.length];
+			for (int i = 0; i < x.length; i++)
+				result[i] = a * x[i];
+			return result;
+		}
+
+		double[] axpy(double a, double[] x, double[] y) {
+			double[] result = new double[x.length];
+			for (int i = 0; i < x.length; i++)
+				result[i] = a * x[i] + y[i];
+			return result;
+		}
+	}
+}
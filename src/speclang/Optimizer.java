@@ -0,0 +1,807 @@
+package speclang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import speclang.AST.*;
+import speclang.Env.*;
+
+/**
+ * This pass runs after type checking and before resolving. It rewrites a
+ * program into a smaller one with the same results:
+ *
+ * - arithmetic and comparisons over literals are folded into a literal,
+ * - let bindings of literals are substituted into the body and dropped,
+ * - if expressions with a literal condition are replaced by the branch,
+ * - #t conditions are dropped from spec cases, as are spec cases that can
+ *   never be selected because an earlier one always holds or because their
+ *   first precondition is #f,
+ * - pure subexpressions that occur more than once in the conditions of a
+ *   spec are shared, so that a call computes them once, see share,
+ * - calls to small, non-recursive functions bound by define are replaced
+ *   by their body, see inline.
+ *
+ * The environment maps the names in scope to the literal they are bound to,
+ * or to null if they are not bound to a literal.
+ *
+ * @author hridesh
+ *
+ */
+public class Optimizer implements Visitor<Exp, Exp> {
+
+	static final int DEFAULT_BUDGET = 24;
+
+	private int _visited = 0; // Nodes of the program
+	private int _kept = 0; // Nodes of the optimized program
+	private int _inlined = 0; // Calls replaced by the body of the function
+	private int _grown = 0; // Nodes of the optimized program that inlining added
+	private int _copying = 0; // Inlined code is not part of the program
+
+	private final int _budget; // Largest function that is inlined, in nodes
+	private final Map<String, Inlinable> _inlinable = new HashMap<String, Inlinable>();
+	private Set<String> _free = null; // Globals used by the define being optimized
+	private Sharing _sharing = null; // The spec whose conditions are being shared
+	private final PurityChecker.Stateless _stateless = new PurityChecker.Stateless();
+	private final PurityChecker _callFree = new CallFree();
+	private final Printer.Formatter _ts = new Printer.Formatter();
+
+	/**
+	 * Pure, and making no calls, since the PurityChecker does not look into
+	 * the functions called.
+	 */
+	private static class CallFree extends PurityChecker {
+		public Boolean visit(CallExp e, Env<Type> env) throws ProgramError {
+			return false;
+		}
+
+		public Boolean visit(PrimitiveExp e, Env<Type> env) throws ProgramError {
+			return false;
+		}
+	}
+
+	/**
+	 * A function bound by define whose calls can be replaced by its body.
+	 */
+	private static class Inlinable {
+		final LambdaExp _lambda;
+		final Set<String> _free;
+
+		Inlinable(LambdaExp lambda, Set<String> free) {
+			_lambda = lambda;
+			_free = free;
+		}
+
+		SpecCase speccase() {
+			if (_lambda.spec() == null)
+				return null;
+			return ((FuncSpec) _lambda.spec()).speccases().get(0);
+		}
+	}
+
+	public Optimizer() {
+		this(DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param budget the number of nodes up to which a function is inlined, 0
+	 *            turns inlining off.
+	 */
+	public Optimizer(int budget) {
+		_budget = budget;
+	}
+
+	/**
+	 * @return the optimized program.
+	 */
+	Program optimize(Program p) throws ProgramError {
+		_visited = 0;
+		_kept = 0;
+		_inlined = 0;
+		_grown = 0;
+		_visited++;
+		List<DefineDecl> decls = new ArrayList<DefineDecl>();
+		for (DefineDecl d : p.decls())
+			decls.add((DefineDecl) opt(d, new EmptyEnv<Exp>()));
+		Exp e = opt(p.e(), new EmptyEnv<Exp>());
+		return keep(new Program(decls, e));
+	}
+
+	/**
+	 * @return the number of nodes removed by the last call to optimize. The
+	 *         nodes that inlining added are counted by grown.
+	 */
+	int removed() {
+		return _visited - (_kept - _grown);
+	}
+
+	/**
+	 * @return the number of nodes that the bodies inlined by the last call
+	 *         to optimize added, less the operands substituted into them.
+	 */
+	int grown() {
+		return _grown;
+	}
+
+	/**
+	 * @return the number of nodes in the program given to the last call to
+	 *         optimize.
+	 */
+	int visited() {
+		return _visited;
+	}
+
+	/**
+	 * @return the number of calls inlined by the last call to optimize.
+	 */
+	int inlined() {
+		return _inlined;
+	}
+
+	private Exp opt(Exp e, Env<Exp> env) throws ProgramError {
+		count();
+		if (_sharing != null && _sharing.inScope(env) && shareable(e))
+			return _sharing.share(e, env);
+		return e.accept(this, env);
+	}
+
+	private void count() {
+		if (_copying == 0)
+			_visited++;
+	}
+
+	private List<Exp> optAll(List<Exp> exps, Env<Exp> env) throws ProgramError {
+		List<Exp> result = new ArrayList<Exp>(exps.size());
+		for (Exp e : exps)
+			result.add(opt(e, env));
+		return result;
+	}
+
+	private <N extends ASTNode> N keep(N n) {
+		_kept++;
+		return n;
+	}
+
+	/**
+	 * Replaces a node whose operands have all been folded to n literals by
+	 * a literal.
+	 */
+	private Exp fold(Exp literal, int n) {
+		_kept -= n;
+		return keep(literal);
+	}
+
+	private static boolean literal(Exp e) {
+		return e instanceof NumExp || e instanceof BoolExp || e instanceof StrExp;
+	}
+
+	private static boolean allNums(List<Exp> exps) {
+		for (Exp e : exps)
+			if (!(e instanceof NumExp))
+				return false;
+		return true;
+	}
+
+	private static boolean isTrue(Exp e) {
+		return e instanceof BoolExp && ((BoolExp) e).v();
+	}
+
+	private static boolean isFalse(Exp e) {
+		return e instanceof BoolExp && !((BoolExp) e).v();
+	}
+
+	private static boolean bound(String name, Env<Exp> env) {
+		try {
+			env.get(name);
+			return true;
+		} catch (LookupException ex) {
+			return false;
+		}
+	}
+
+	private static <T> List<T> list(T t) {
+		List<T> result = new ArrayList<T>();
+		result.add(t);
+		return result;
+	}
+
+	public Exp visit(VarExp e, Env<Exp> env) throws ProgramError {
+		Exp value = null;
+		try {
+			value = env.get(e.name());
+		} catch (LookupException ex) {
+			// A global or an unknown variable
+			if (_free != null)
+				_free.add(e.name());
+		}
+		return keep(value != null ? value : new VarExp(e.name()));
+	}
+
+	public Exp visit(UnitExp e, Env<Exp> env) throws ProgramError {
+		return keep(e);
+	}
+
+	public Exp visit(NumExp e, Env<Exp> env) throws ProgramError {
+		return keep(e);
+	}
+
+	public Exp visit(StrExp e, Env<Exp> env) throws ProgramError {
+		return keep(e);
+	}
+
+	public Exp visit(BoolExp e, Env<Exp> env) throws ProgramError {
+		return keep(e);
+	}
+
+	public Exp visit(ErrorExp e, Env<Exp> env) throws ProgramError {
+		return keep(e);
+	}
+
+	public Exp visit(AddExp e, Env<Exp> env) throws ProgramError {
+		List<Exp> operands = optAll(e.all(), env);
+		if (!allNums(operands))
+			return keep(new AddExp(operands));
+		// Sums are accumulated in an int, as in the Evaluator.
+		int result = 0;
+		for (Exp operand : operands)
+			result += ((NumExp) operand).v();
+		return fold(new NumExp(result), operands.size());
+	}
+
+	public Exp visit(SubExp e, Env<Exp> env) throws ProgramError {
+		List<Exp> operands = optAll(e.all(), env);
+		if (!allNums(operands))
+			return keep(new SubExp(operands));
+		double result = ((NumExp) operands.get(0)).v();
+		for (int i = 1; i < operands.size(); i++)
+			result = result - ((NumExp) operands.get(i)).v();
+		return fold(new NumExp(result), operands.size());
+	}
+
+	public Exp visit(MultExp e, Env<Exp> env) throws ProgramError {
+		List<Exp> operands = optAll(e.all(), env);
+		if (!allNums(operands))
+			return keep(new MultExp(operands));
+		double result = 1;
+		for (Exp operand : operands)
+			result *= ((NumExp) operand).v();
+		return fold(new NumExp(result), operands.size());
+	}
+
+	public Exp visit(DivExp e, Env<Exp> env) throws ProgramError {
+		List<Exp> operands = optAll(e.all(), env);
+		if (!allNums(operands))
+			return keep(new DivExp(operands));
+		double result = ((NumExp) operands.get(0)).v();
+		for (int i = 1; i < operands.size(); i++)
+			result = result / ((NumExp) operands.get(i)).v();
+		return fold(new NumExp(result), operands.size());
+	}
+
+	public Exp visit(LessExp e, Env<Exp> env) throws ProgramError {
+		Exp first = opt(e.first_exp(), env);
+		Exp second = opt(e.second_exp(), env);
+		if (first instanceof NumExp && second instanceof NumExp)
+			return fold(new BoolExp(((NumExp) first).v() < ((NumExp) second).v()), 2);
+		return keep(new LessExp(first, second));
+	}
+
+	public Exp visit(LessEqExp e, Env<Exp> env) throws ProgramError {
+		Exp first = opt(e.first_exp(), env);
+		Exp second = opt(e.second_exp(), env);
+		if (first instanceof NumExp && second instanceof NumExp)
+			return fold(new BoolExp(((NumExp) first).v() <= ((NumExp) second).v()), 2);
+		return keep(new LessEqExp(first, second));
+	}
+
+	public Exp visit(EqualExp e, Env<Exp> env) throws ProgramError {
+		Exp first = opt(e.first_exp(), env);
+		Exp second = opt(e.second_exp(), env);
+		if (first instanceof NumExp && second instanceof NumExp)
+			return fold(new BoolExp(((NumExp) first).v() == ((NumExp) second).v()), 2);
+		return keep(new EqualExp(first, second));
+	}
+
+	public Exp visit(GreaterExp e, Env<Exp> env) throws ProgramError {
+		Exp first = opt(e.first_exp(), env);
+		Exp second = opt(e.second_exp(), env);
+		if (first instanceof NumExp && second instanceof NumExp)
+			return fold(new BoolExp(((NumExp) first).v() > ((NumExp) second).v()), 2);
+		return keep(new GreaterExp(first, second));
+	}
+
+	public Exp visit(GreaterEqExp e, Env<Exp> env) throws ProgramError {
+		Exp first = opt(e.first_exp(), env);
+		Exp second = opt(e.second_exp(), env);
+		if (first instanceof NumExp && second instanceof NumExp)
+			return fold(new BoolExp(((NumExp) first).v() >= ((NumExp) second).v()), 2);
+		return keep(new GreaterEqExp(first, second));
+	}
+
+	public Exp visit(IfExp e, Env<Exp> env) throws ProgramError {
+		int start = _kept;
+		Exp conditional = opt(e.conditional(), env);
+		int then_start = _kept;
+		Exp then_exp = opt(e.then_exp(), env);
+		int else_start = _kept;
+		Exp else_exp = opt(e.else_exp(), env);
+		if (isTrue(conditional)) {
+			_kept = start + (else_start - then_start);
+			return then_exp;
+		}
+		if (isFalse(conditional)) {
+			_kept = start + (_kept - else_start);
+			return else_exp;
+		}
+		return keep(new IfExp(conditional, then_exp, else_exp));
+	}
+
+	public Exp visit(LetExp e, Env<Exp> env) throws ProgramError {
+		return let(e.names(), e.varTypes(), optAll(e.value_exps(), env), e.body(), env);
+	}
+
+	/**
+	 * @return the let expression binding the names to the optimized values
+	 *         in the body, once the literal values are substituted.
+	 */
+	private Exp let(List<String> all_names, List<Type> all_types, List<Exp> all_value_exps, Exp e_body, Env<Exp> env)
+			throws ProgramError {
+		List<String> names = new ArrayList<String>();
+		List<Type> types = new ArrayList<Type>();
+		List<Exp> value_exps = new ArrayList<Exp>();
+		Env<Exp> body_env = env;
+		for (int i = 0; i < all_names.size(); i++) {
+			String name = all_names.get(i);
+			Exp value_exp = all_value_exps.get(i);
+			if (literal(value_exp)) {
+				_kept--; // Substituted into the body instead
+				body_env = new ExtendEnv<Exp>(body_env, name, value_exp);
+			} else {
+				names.add(name);
+				types.add(all_types.get(i));
+				value_exps.add(value_exp);
+				body_env = new ExtendEnv<Exp>(body_env, name, null);
+			}
+		}
+		Exp body = opt(e_body, body_env);
+		if (names.isEmpty())
+			return body;
+		return keep(new LetExp(names, types, value_exps, body));
+	}
+
+	public Exp visit(LetrecExp e, Env<Exp> env) throws ProgramError {
+		Env<Exp> new_env = shadow(env, e.names());
+		List<Exp> fun_exps = optAll(e.fun_exps(), new_env);
+		Exp body = opt(e.body(), new_env);
+		return keep(new LetrecExp(e.names(), e.types(), fun_exps, body));
+	}
+
+	private static Env<Exp> shadow(Env<Exp> env, List<String> names) {
+		for (String name : names)
+			env = new ExtendEnv<Exp>(env, name, null);
+		return env;
+	}
+
+	public Exp visit(LambdaExp e, Env<Exp> env) throws ProgramError {
+		Env<Exp> body_env = shadow(env, e.formals());
+		Exp body = opt(e.body(), body_env);
+		Spec spec = e.spec();
+		if (spec instanceof FuncSpec) {
+			List<String> result = new ArrayList<String>();
+			result.add("result");
+			spec = optimize((FuncSpec) spec, body_env, shadow(body_env, result));
+		}
+		if (spec instanceof FuncSpec)
+			spec = share((FuncSpec) spec, body, body_env, shadow(body_env, list("result")));
+		LambdaExp lambda = new LambdaExp(e.formals(), e.formal_types(), spec, body);
+		lambda.setType(e.type());
+		return keep(lambda);
+	}
+
+	/**
+	 * Spec cases are tried in order, so the cases after one whose
+	 * preconditions always hold are never selected.
+	 */
+	private FuncSpec optimize(FuncSpec s, Env<Exp> pre_env, Env<Exp> post_env) throws ProgramError {
+		count();
+		List<SpecCase> speccases = new ArrayList<SpecCase>();
+		boolean reachable = true;
+		for (SpecCase speccase : s.speccases()) {
+			count();
+			int start = _kept;
+			List<Exp> preconditions = conditions(speccase.preconditions(), pre_env);
+			List<Exp> postconditions = conditions(speccase.postconditions(), post_env);
+			// A case whose first precondition is #f is never selected.
+			boolean never = !preconditions.isEmpty() && isFalse(preconditions.get(0));
+			if (!reachable || never) {
+				_kept = start;
+				continue;
+			}
+			speccases.add(keep(new SpecCase(preconditions, postconditions).provenAs(speccase)));
+			reachable = !preconditions.isEmpty() && !speccase.alwaysSelects();
+		}
+		return keep(new FuncSpec(speccases));
+	}
+
+	/**
+	 * The subexpressions of the conditions of a spec that are not under a
+	 * binding of the conditions, by their text. Those that occur more than
+	 * once are replaced by a SharedExp, which a call evaluates once where
+	 * the formals are bound.
+	 */
+	private class Sharing {
+		private final Env<Exp> _pre_env;
+		private final Env<Exp> _post_env;
+		private final boolean _pure_body;
+		private final Map<String, Integer> _occurrences = new HashMap<String, Integer>();
+		private Map<String, SharedExp> _shared = null; // Counting until set
+		private final List<Exp> _exps = new ArrayList<Exp>();
+
+		Sharing(Env<Exp> pre_env, Env<Exp> post_env, boolean pure_body) {
+			_pre_env = pre_env;
+			_post_env = post_env;
+			_pure_body = pure_body;
+		}
+
+		boolean inScope(Env<Exp> env) {
+			return env == _pre_env || env == _post_env;
+		}
+
+		/**
+		 * Unless the body is stateless, calls included, it may change the
+		 * heap, and the preconditions and the postconditions do not share
+		 * their subexpressions.
+		 */
+		private String key(Exp e, Env<Exp> env) throws ProgramError {
+			String text = e.accept(_ts, null);
+			if (_pure_body)
+				return text;
+			return (env == _pre_env ? "pre " : "post ") + text;
+		}
+
+		Exp share(Exp e, Env<Exp> env) throws ProgramError {
+			String key = key(e, env);
+			if (_shared == null) {
+				Integer n = _occurrences.get(key);
+				_occurrences.put(key, n == null ? 1 : n + 1);
+				return e.accept(Optimizer.this, env);
+			}
+			if (_occurrences.get(key) < 2)
+				return e.accept(Optimizer.this, env);
+			SharedExp shared = _shared.get(key);
+			if (shared == null) {
+				// Keeps the place of the expression for those it shares.
+				_exps.add(null);
+				int index = _exps.size() - 1;
+				Exp exp = e.accept(Optimizer.this, env);
+				_exps.set(index, exp);
+				shared = new SharedExp(index, exp);
+				_shared.put(key, shared);
+			}
+			return keep(shared);
+		}
+
+		boolean any() {
+			for (int n : _occurrences.values())
+				if (n > 1)
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * @return false for the subexpressions that are not worth sharing, that
+	 *         are not stateless, so may have effects or read what a call
+	 *         changes, or that refer to the result of the call.
+	 */
+	private boolean shareable(Exp e) throws ProgramError {
+		if (e instanceof VarExp || literal(e) || e instanceof UnitExp || e instanceof ErrorExp
+				|| e instanceof LambdaExp || e instanceof SharedExp)
+			return false;
+		return (Boolean) e.accept(_stateless, null) && !e.accept(_ts, null).contains("result");
+	}
+
+	/**
+	 * @return s with the subexpressions that occur more than once in its
+	 *         conditions shared.
+	 */
+	private FuncSpec share(FuncSpec s, Exp body, Env<Exp> pre_env, Env<Exp> post_env) throws ProgramError {
+		Sharing saved = _sharing;
+		_sharing = new Sharing(pre_env, post_env, (Boolean) body.accept(_stateless, null));
+		_copying++; // The conditions have been counted already
+		int kept = _kept;
+		try {
+			List<SpecCase> speccases = shareAll(s, pre_env, post_env);
+			if (!_sharing.any()) {
+				_kept = kept;
+				return s;
+			}
+			int size = _kept - kept;
+			_kept = kept - size;
+			_sharing._shared = new HashMap<String, SharedExp>();
+			speccases = shareAll(s, pre_env, post_env);
+			return new FuncSpec(speccases, _sharing._exps);
+		} finally {
+			_copying--;
+			_sharing = saved;
+		}
+	}
+
+	private List<SpecCase> shareAll(FuncSpec s, Env<Exp> pre_env, Env<Exp> post_env) throws ProgramError {
+		List<SpecCase> speccases = new ArrayList<SpecCase>();
+		for (SpecCase speccase : s.speccases())
+			speccases.add(new SpecCase(optAll(speccase.preconditions(), pre_env),
+					optAll(speccase.postconditions(), post_env)).provenAs(speccase));
+		return speccases;
+	}
+
+	/**
+	 * @return the conditions without those that are #t.
+	 */
+	private List<Exp> conditions(List<Exp> conditions, Env<Exp> env) throws ProgramError {
+		List<Exp> result = new ArrayList<Exp>();
+		for (Exp condition : conditions) {
+			Exp c = opt(condition, env);
+			if (isTrue(c))
+				_kept--;
+			else
+				result.add(c);
+		}
+		return result;
+	}
+
+	public Exp visit(CallExp e, Env<Exp> env) throws ProgramError {
+		Inlinable f = inlinable(e, env);
+		if (f != null)
+			return inline(f, e, env);
+		Exp operator = opt(e.operator(), env);
+		CallExp call = new CallExp(operator, optAll(e.operands(), env));
+		call.setOrigin(e.origin());
+		return keep(call);
+	}
+
+	/**
+	 * @return the function called by e if the call can be inlined, null
+	 *         otherwise. Calls made by inlined code to report a violation
+	 *         are never inlined.
+	 */
+	private Inlinable inlinable(CallExp e, Env<Exp> env) {
+		if (e.origin() != null || !(e.operator() instanceof VarExp))
+			return null;
+		String name = ((VarExp) e.operator()).name();
+		Inlinable f = _inlinable.get(name);
+		if (f == null || bound(name, env) || f._lambda.formals().size() != e.operands().size())
+			return null;
+		// The body must see the same globals here as where it was defined.
+		for (String free : f._free)
+			if (bound(free, env))
+				return null;
+		return f;
+	}
+
+	/**
+	 * Replaces the call e of f by a let expression binding the formals of f
+	 * to the operands in its body. If f has a spec, the body is guarded by
+	 * its preconditions and its value by its postconditions. When one of
+	 * them does not hold, the inlined code makes the original call, which
+	 * checks the spec again and reports the violation for e, or under a
+	 * policy that does not check it returns the value of the body. For a
+	 * postcondition the body then runs again, so only functions whose body
+	 * has no effects are inlined with postconditions, see remember.
+	 */
+	private Exp inline(Inlinable f, CallExp e, Env<Exp> env) throws ProgramError {
+		count(); // The operator
+		List<Exp> operands = optAll(e.operands(), env);
+		LambdaExp lambda = f._lambda;
+		List<String> formals = lambda.formals();
+		List<Exp> actuals = new ArrayList<Exp>();
+		for (String formal : formals)
+			actuals.add(new VarExp(formal));
+		CallExp violation = new CallExp(e.operator(), actuals);
+		violation.setOrigin(e);
+
+		Exp code = lambda.body();
+		SpecCase speccase = f.speccase();
+		if (speccase != null) {
+			List<Exp> postconditions = speccase.checkedPostconditions();
+			if (!postconditions.isEmpty()) {
+				Type result_type = ((Type.FuncT) lambda.type()).returnType();
+				Exp check = guard(postconditions, new VarExp("result"), violation);
+				code = new LetExp(list("result"), list(result_type), list(code), check);
+			}
+			code = guard(speccase.checkedPreconditions(), code, violation);
+		}
+		int start = _kept;
+		_copying++;
+		try {
+			code = let(formals, lambda.formal_types(), operands, code, env);
+		} finally {
+			_copying--;
+		}
+		_grown += _kept - start;
+		_inlined++;
+		return code;
+	}
+
+	/**
+	 * @return e if all conditions hold, otherwise violation.
+	 */
+	private static Exp guard(List<Exp> conditions, Exp e, Exp violation) {
+		for (int i = conditions.size() - 1; i >= 0; i--)
+			e = new IfExp(conditions.get(i), e, violation);
+		return e;
+	}
+
+	public Exp visit(DefineDecl d, Env<Exp> env) throws ProgramError {
+		forget(d.name());
+		int start = _kept;
+		_free = new HashSet<String>();
+		Exp value_exp = opt(d.value_exp(), env);
+		if (value_exp instanceof LambdaExp && _kept - start <= _budget)
+			remember(d.name(), (LambdaExp) value_exp, _free);
+		_free = null;
+		return keep(new DefineDecl(d.name(), d.type(), value_exp));
+	}
+
+	/**
+	 * A function stops being inlinable when the global name it is bound to,
+	 * or a global name it uses, is defined again.
+	 */
+	private void forget(String name) {
+		Iterator<Map.Entry<String, Inlinable>> i = _inlinable.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<String, Inlinable> entry = i.next();
+			if (entry.getKey().equals(name) || entry.getValue()._free.contains(name))
+				i.remove();
+		}
+	}
+
+	/**
+	 * Functions that call themselves, functions with more than one spec case
+	 * left, and functions with postconditions whose body may have effects,
+	 * are not inlined.
+	 */
+	private void remember(String name, LambdaExp lambda, Set<String> free) throws ProgramError {
+		if (free.contains(name) || lambda.formals().contains(name))
+			return;
+		Spec spec = lambda.spec();
+		if (spec != null && !(spec instanceof FuncSpec))
+			return;
+		if (spec != null) {
+			List<SpecCase> speccases = ((FuncSpec) spec).speccases();
+			if (speccases.size() != 1)
+				return;
+			if (!speccases.get(0).checkedPostconditions().isEmpty()
+					&& (lambda.formals().contains("result") || !(lambda.type() instanceof Type.FuncT)
+							|| !(Boolean) lambda.body().accept(_callFree, null)))
+				return;
+		}
+		_inlinable.put(name, new Inlinable(lambda, free));
+	}
+
+	public Exp visit(CarExp e, Env<Exp> env) throws ProgramError {
+		return keep(new CarExp(opt(e.arg(), env)));
+	}
+
+	public Exp visit(CdrExp e, Env<Exp> env) throws ProgramError {
+		return keep(new CdrExp(opt(e.arg(), env)));
+	}
+
+	public Exp visit(ConsExp e, Env<Exp> env) throws ProgramError {
+		Exp fst = opt(e.fst(), env);
+		return keep(new ConsExp(fst, opt(e.snd(), env)));
+	}
+
+	public Exp visit(ListExp e, Env<Exp> env) throws ProgramError {
+		return keep(new ListExp(e.type(), optAll(e.elems(), env)));
+	}
+
+	public Exp visit(VectorExp e, Env<Exp> env) throws ProgramError {
+		return keep(new VectorExp(e.type(), optAll(e.elems(), env)));
+	}
+
+	public Exp visit(MakeVectorExp e, Env<Exp> env) throws ProgramError {
+		Exp size = opt(e.size(), env);
+		return keep(new MakeVectorExp(size, opt(e.init(), env)));
+	}
+
+	public Exp visit(VectorRefExp e, Env<Exp> env) throws ProgramError {
+		Exp vec = opt(e.vec(), env);
+		return keep(new VectorRefExp(vec, opt(e.index(), env)));
+	}
+
+	public Exp visit(VectorLengthExp e, Env<Exp> env) throws ProgramError {
+		return keep(new VectorLengthExp(opt(e.vec(), env)));
+	}
+
+	public Exp visit(VectorSetExp e, Env<Exp> env) throws ProgramError {
+		Exp vec = opt(e.vec(), env);
+		Exp index = opt(e.index(), env);
+		return keep(new VectorSetExp(vec, index, opt(e.value_exp(), env)));
+	}
+
+	public Exp visit(NullExp e, Env<Exp> env) throws ProgramError {
+		return keep(new NullExp(opt(e.arg(), env)));
+	}
+
+	public Exp visit(IsNullExp e, Env<Exp> env) throws ProgramError {
+		return keep(new IsNullExp(opt(e.exp(), env)));
+	}
+
+	public Exp visit(IsProcedureExp e, Env<Exp> env) throws ProgramError {
+		return keep(new IsProcedureExp(opt(e.exp(), env)));
+	}
+
+	public Exp visit(IsListExp e, Env<Exp> env) throws ProgramError {
+		return keep(new IsListExp(opt(e.exp(), env)));
+	}
+
+	public Exp visit(IsPairExp e, Env<Exp> env) throws ProgramError {
+		return keep(new IsPairExp(opt(e.exp(), env)));
+	}
+
+	public Exp visit(IsUnitExp e, Env<Exp> env) throws ProgramError {
+		return keep(new IsUnitExp(opt(e.exp(), env)));
+	}
+
+	public Exp visit(IsNumberExp e, Env<Exp> env) throws ProgramError {
+		return keep(new IsNumberExp(opt(e.exp(), env)));
+	}
+
+	public Exp visit(IsStringExp e, Env<Exp> env) throws ProgramError {
+		return keep(new IsStringExp(opt(e.exp(), env)));
+	}
+
+	public Exp visit(IsBooleanExp e, Env<Exp> env) throws ProgramError {
+		return keep(new IsBooleanExp(opt(e.exp(), env)));
+	}
+
+	public Exp visit(RefExp e, Env<Exp> env) throws ProgramError {
+		return keep(new RefExp(opt(e.value_exp(), env), e.type()));
+	}
+
+	public Exp visit(DerefExp e, Env<Exp> env) throws ProgramError {
+		return keep(new DerefExp(opt(e.loc_exp(), env)));
+	}
+
+	public Exp visit(AssignExp e, Env<Exp> env) throws ProgramError {
+		Exp lhs = opt(e.lhs_exp(), env);
+		return keep(new AssignExp(lhs, opt(e.rhs_exp(), env)));
+	}
+
+	public Exp visit(FreeExp e, Env<Exp> env) throws ProgramError {
+		return keep(new FreeExp(opt(e.value_exp(), env)));
+	}
+
+	public Exp visit(SharedExp e, Env<Exp> env) throws ProgramError {
+		return e.exp().accept(this, env); // Shared again by its spec if need be
+	}
+
+	public Exp visit(EvalExp e, Env<Exp> env) throws ProgramError {
+		return keep(new EvalExp(opt(e.code(), env)));
+	}
+
+	public Exp visit(PrimitiveExp e, Env<Exp> env) throws ProgramError {
+		return keep(new PrimitiveExp(e.primitive(), optAll(e.args(), env)));
+	}
+
+	public Exp visit(ReadExp e, Env<Exp> env) throws ProgramError {
+		return keep(new ReadExp(opt(e.file(), env)));
+	}
+
+	public Exp visit(Program p, Env<Exp> env) throws ProgramError {
+		throw new ProgramError("Programs are optimized by optimize(Program)");
+	}
+
+	public Exp visit(FuncSpec s, Env<Exp> env) throws ProgramError {
+		throw new ProgramError("Specifications are optimized along with their lambda expression");
+	}
+
+	public Exp visit(SpecCase s, Env<Exp> env) throws ProgramError {
+		throw new ProgramError("Specification cases are optimized along with their lambda expression");
+	}
+}
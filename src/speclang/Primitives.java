@@ -0,0 +1,424 @@
+package speclang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import speclang.AST.*;
+import speclang.Env.*;
+import speclang.Type.*;
+import speclang.Value.*;
+
+/**
+ * The list procedures of the standard library, implemented as Java loops
+ * over pairs instead of as recursive SpecLang code, and bulk operations on
+ * numeric vectors, which Numerics runs over their unboxed elements. Each engine
+ * binds them as global functions whose body is a primitive expression, and
+ * the Checker knows their types.
+ *
+ * The Checker has no polymorphic types, so the procedures are typed over
+ * lists and vectors of numbers. Procedures that take a function call it as
+ * a call expression would, with the checks of its specification.
+ *
+ * @author hridesh
+ *
+ */
+class Primitives {
+
+	/**
+	 * Calls a function value that was given to a primitive, in the engine
+	 * that runs the primitive.
+	 */
+	interface Caller {
+		Value call(Value f, Value... args) throws ProgramError;
+	}
+
+	interface Body {
+		Value apply(Value[] actuals, Caller caller) throws ProgramError;
+	}
+
+	static class Primitive {
+		private final String _name;
+		private final List<String> _formals;
+		private final FuncT _type;
+		private final Body _body;
+
+		Primitive(String name, List<String> formals, FuncT type, Body body) {
+			_name = name;
+			_formals = formals;
+			_type = type;
+			_body = body;
+		}
+
+		public String name() {
+			return _name;
+		}
+
+		public List<String> formals() {
+			return _formals;
+		}
+
+		public FuncT type() {
+			return _type;
+		}
+
+		/**
+		 * @return true if p neither reads nor allocates vectors, whose
+		 *         contents may change between calls.
+		 */
+		boolean stateless() {
+			for (Type t : _type.argTypes())
+				if (t instanceof VecT)
+					return false;
+			return !(_type.returnType() instanceof VecT);
+		}
+
+		Value apply(Value[] actuals, Caller caller) throws ProgramError {
+			return _body.apply(actuals, caller);
+		}
+	}
+
+	private static final Map<String, Primitive> _registry = new LinkedHashMap<String, Primitive>();
+
+	private static final Numerics NUMERICS = Numerics.INSTANCE;
+
+	static Collection<Primitive> all() {
+		return _registry.values();
+	}
+
+	/**
+	 * @return the primitive of the given name, or null.
+	 */
+	static Primitive get(String name) {
+		return _registry.get(name);
+	}
+
+	static {
+		Type num = NumT.getInstance();
+		Type bool = BoolT.getInstance();
+		Type list = new ListT(num);
+		Type unary = new FuncT(Arrays.asList(num), num);
+		Type predicate = new FuncT(Arrays.asList(num), bool);
+		Type binary = new FuncT(Arrays.asList(num, num), num);
+
+		define("length", list, num, (a, c) -> NumVal.of(length(a[0])), "lst");
+		define("append", list, list, list, (a, c) -> append(a[0], a[1]), "lst1", "lst2");
+		define("map", unary, list, list, (a, c) -> map(a[0], a[1], c), "op", "lst");
+		define("filter", predicate, list, list, (a, c) -> filter(a[0], a[1], c), "pred", "lst");
+		define("foldl", binary, num, list, num, (a, c) -> foldl(a[0], a[1], a[2], c), "op", "init", "lst");
+		define("foldr", binary, num, list, num, (a, c) -> foldr(a[0], a[1], a[2], c), "op", "init", "lst");
+		define("reverse", list, list, (a, c) -> reverse(a[0]), "lst");
+		// Identifiers cannot contain a '-', so this is list-ref of Scheme.
+		define("list_ref", list, num, num, (a, c) -> listRef(a[0], a[1]), "lst", "index");
+		define("contains", list, num, bool, (a, c) -> BoolVal.of(contains(a[0], a[1])), "lst", "elem");
+
+		Type vec = new VecT(num);
+		define("vector_sum", vec, num, (a, c) -> NumVal.of(NUMERICS.sum(nums(a[0]))), "vec");
+		define("vector_product", vec, num, (a, c) -> NumVal.of(NUMERICS.product(nums(a[0]))), "vec");
+		define("vector_dot", vec, vec, num, (a, c) -> dot(a[0], a[1]), "vec1", "vec2");
+		define("vector_min", vec, num, (a, c) -> NumVal.of(NUMERICS.min(nonEmpty(a[0]))), "vec");
+		define("vector_max", vec, num, (a, c) -> NumVal.of(NUMERICS.max(nonEmpty(a[0]))), "vec");
+		define("vector_scale", num, vec, vec, (a, c) -> new VectorVal(NUMERICS.scale(((NumVal) a[0]).v(), nums(a[1]))),
+				"factor", "vec");
+		// (vector_axpy a x y) is a * x + y, element-wise
+		define("vector_axpy", num, vec, vec, vec, (a, c) -> axpy(a[0], a[1], a[2]), "factor", "vec1", "vec2");
+		define("vector_map", unary, vec, vec, (a, c) -> vectorMap(a[0], (VectorVal) a[1], c), "op", "vec");
+	}
+
+	/**
+	 * Registers a primitive. The last type is the result type, the others
+	 * are the types of the formals.
+	 */
+	private static void define(String name, Type t1, Type t2, Body body, String... formals) {
+		define(name, Arrays.asList(t1), t2, body, formals);
+	}
+
+	private static void define(String name, Type t1, Type t2, Type t3, Body body, String... formals) {
+		define(name, Arrays.asList(t1, t2), t3, body, formals);
+	}
+
+	private static void define(String name, Type t1, Type t2, Type t3, Type t4, Body body, String... formals) {
+		define(name, Arrays.asList(t1, t2, t3), t4, body, formals);
+	}
+
+	private static void define(String name, List<Type> types, Type result, Body body, String... formals) {
+		_registry.put(name, new Primitive(name, Arrays.asList(formals), new FuncT(types, result), body));
+	}
+
+	/**
+	 * @return the types of the primitives, for the Checker.
+	 */
+	static Env<Type> types() {
+		Env<Type> types = new EmptyEnv<Type>();
+		for (Primitive p : all())
+			types = new ExtendEnv<Type>(types, p.name(), p.type());
+		return types;
+	}
+
+	/**
+	 * @return a lambda expression that calls p on its formals. Its only spec
+	 *         case has no conditions, so calls check nothing.
+	 */
+	static LambdaExp lambda(Primitive p) {
+		List<Exp> args = new ArrayList<Exp>();
+		for (int i = 0; i < p.formals().size(); i++) {
+			VarExp arg = new VarExp(p.formals().get(i));
+			arg.resolve(0, i);
+			args.add(arg);
+		}
+		List<SpecCase> cases = new ArrayList<SpecCase>();
+		cases.add(new SpecCase(new ArrayList<Exp>(), new ArrayList<Exp>()));
+		return new LambdaExp(p.formals(), p.type().argTypes(), new FuncSpec(cases), new PrimitiveExp(p, args));
+	}
+
+	/*
+	 * The call expressions by which engines call the function values given
+	 * to primitives: (f x) and (f x y), in a frame that binds f, x and y.
+	 * Those made for a call of the primitive have it as their origin, so
+	 * that errors name the call in the program instead.
+	 */
+	private static final List<String> FRAME = Arrays.asList("f", "x", "y");
+	private static final CallExp[] SITES = { site(0), site(1), site(2) };
+
+	private static CallExp site(int arity) {
+		VarExp operator = new VarExp("f");
+		operator.resolve(0, 0);
+		List<Exp> operands = new ArrayList<Exp>();
+		for (int i = 1; i <= arity; i++) {
+			VarExp operand = new VarExp(FRAME.get(i));
+			operand.resolve(0, i);
+			operands.add(operand);
+		}
+		return new CallExp(operator, operands);
+	}
+
+	/**
+	 * @return the call expression by which f is called on args, for a
+	 *         primitive that origin calls, if not null.
+	 */
+	static CallExp site(Value[] args, CallExp origin) {
+		if (origin == null)
+			return SITES[args.length];
+		synchronized (origin) { // Specs may be checked in parallel
+			CallExp[] sites = origin.sites();
+			if (sites[args.length] == null) {
+				CallExp site = site(args.length);
+				site.setOrigin(origin);
+				sites[args.length] = site;
+			}
+			return sites[args.length];
+		}
+	}
+
+	/**
+	 * @return the frame, on top of env, in which site(args) calls f.
+	 */
+	static Env<Value> frame(Env<Value> env, Value f, Value[] args) {
+		Value[] values = new Value[args.length + 1];
+		values[0] = f;
+		System.arraycopy(args, 0, values, 1, args.length);
+		return new ExtendEnvFrame<Value>(env, FRAME.subList(0, values.length), values);
+	}
+
+	/*
+	 * Begin: the primitives
+	 */
+
+	private static int length(Value lst) throws ProgramError {
+		int length = 0;
+		for (Value v = lst; !(v instanceof Null);)
+			if (v instanceof ListVal) {
+				length += ((ListVal) v).size();
+				v = ((ListVal) v).tail();
+			} else {
+				length++;
+				v = rest(v, lst);
+			}
+		return length;
+	}
+
+	private static Value append(Value lst1, Value lst2) throws ProgramError {
+		if (lst2 instanceof Null)
+			return list(lst1);
+		Value[] elems = elements(lst1);
+		return ListVal.of(elems, elems.length, lst2);
+	}
+
+	private static Value map(Value op, Value lst, Caller caller) throws ProgramError {
+		Value[] elems = elements(lst);
+		for (int i = 0; i < elems.length; i++)
+			elems[i] = caller.call(op, elems[i]);
+		return list(elems, elems.length);
+	}
+
+	private static Value filter(Value pred, Value lst, Caller caller) throws ProgramError {
+		Value[] elems = elements(lst);
+		int kept = 0;
+		for (Value elem : elems) {
+			Value keep = caller.call(pred, elem);
+			if (!(keep instanceof BoolVal))
+				throw new ProgramError("The predicate of filter returned " + keep.tostring() + ", not a boolean");
+			if (((BoolVal) keep).v())
+				elems[kept++] = elem;
+		}
+		return list(elems, kept);
+	}
+
+	private static Value foldl(Value op, Value init, Value lst, Caller caller) throws ProgramError {
+		Value result = init;
+		for (Value v = lst; !(v instanceof Null); v = rest(v, lst))
+			result = caller.call(op, first(v, lst), result);
+		return result;
+	}
+
+	private static Value foldr(Value op, Value init, Value lst, Caller caller) throws ProgramError {
+		Value[] elems = elements(lst);
+		Value result = init;
+		for (int i = elems.length - 1; i >= 0; i--)
+			result = caller.call(op, elems[i], result);
+		return result;
+	}
+
+	private static Value reverse(Value lst) throws ProgramError {
+		Value[] elems = elements(lst);
+		for (int i = 0, j = elems.length - 1; i < j; i++, j--) {
+			Value elem = elems[i];
+			elems[i] = elems[j];
+			elems[j] = elem;
+		}
+		return list(elems, elems.length);
+	}
+
+	private static Value listRef(Value lst, Value index) throws ProgramError {
+		double i = ((NumVal) index).v();
+		Value v = lst;
+		for (double k = i; i >= 0 && i == Math.floor(i) && !(v instanceof Null);)
+			if (v instanceof ListVal) {
+				ListVal l = (ListVal) v;
+				if (k < l.size())
+					return l.get((int) k);
+				k -= l.size();
+				v = l.tail();
+			} else if (k == 0)
+				return first(v, lst);
+			else {
+				v = rest(v, lst);
+				k--;
+			}
+		throw new ProgramError("Index " + index.tostring() + " is out of range in list_ref");
+	}
+
+	private static boolean contains(Value lst, Value elem) throws ProgramError {
+		for (Value v = lst; !(v instanceof Null); v = rest(v, lst)) {
+			Value x = first(v, lst);
+			if (x instanceof NumVal && elem instanceof NumVal ? ((NumVal) x).v() == ((NumVal) elem).v()
+					: x.equals(elem))
+				return true;
+		}
+		return false;
+	}
+
+	private static Value dot(Value vec1, Value vec2) throws ProgramError {
+		double[] x = nums(vec1), y = nums(vec2);
+		if (x.length != y.length)
+			throw new ProgramError("The vectors of vector_dot have lengths " + x.length + " and " + y.length);
+		return NumVal.of(NUMERICS.dot(x, y));
+	}
+
+	private static Value axpy(Value factor, Value vec1, Value vec2) throws ProgramError {
+		double[] x = nums(vec1), y = nums(vec2);
+		if (x.length != y.length)
+			throw new ProgramError("The vectors of vector_axpy have lengths " + x.length + " and " + y.length);
+		return new VectorVal(NUMERICS.axpy(((NumVal) factor).v(), x, y));
+	}
+
+	/**
+	 * The results of op stay unboxed as long as they are numbers.
+	 */
+	private static Value vectorMap(Value op, VectorVal vec, Caller caller) throws ProgramError {
+		int length = vec.length();
+		double[] nums = new double[length];
+		for (int i = 0; i < length; i++) {
+			Value v = caller.call(op, vec.get(i));
+			if (!(v instanceof NumVal)) {
+				Value[] elems = new Value[length];
+				for (int j = 0; j < i; j++)
+					elems[j] = NumVal.of(nums[j]);
+				elems[i] = v;
+				for (int j = i + 1; j < length; j++)
+					elems[j] = caller.call(op, vec.get(j));
+				return new VectorVal(elems);
+			}
+			nums[i] = ((NumVal) v).v();
+		}
+		return new VectorVal(nums);
+	}
+
+	/*
+	 * End: the primitives
+	 */
+
+	/**
+	 * @return the elements of vec, a vector of numbers, unboxed.
+	 */
+	private static double[] nums(Value vec) throws ProgramError {
+		VectorVal v = (VectorVal) vec;
+		if (v.nums() != null)
+			return v.nums();
+		double[] nums = new double[v.length()];
+		for (int i = 0; i < nums.length; i++) {
+			Value elem = v.get(i);
+			if (!(elem instanceof NumVal))
+				throw new ProgramError("Expected a vector of numbers, found " + vec.tostring());
+			nums[i] = ((NumVal) elem).v();
+		}
+		return nums;
+	}
+
+	private static double[] nonEmpty(Value vec) throws ProgramError {
+		double[] v = nums(vec);
+		if (v.length == 0)
+			throw new ProgramError("Expected a vector that is not empty");
+		return v;
+	}
+
+	private static Value first(Value v, Value lst) throws ProgramError {
+		if (!(v instanceof PairVal))
+			throw new ProgramError("Expected a list, found " + lst.tostring());
+		return ((PairVal) v).fst();
+	}
+
+	private static Value rest(Value v, Value lst) throws ProgramError {
+		if (!(v instanceof PairVal))
+			throw new ProgramError("Expected a list, found " + lst.tostring());
+		return ((PairVal) v).snd();
+	}
+
+	private static Value[] elements(Value lst) throws ProgramError {
+		Value[] elems = new Value[length(lst)];
+		Value v = lst;
+		for (int i = 0; i < elems.length;)
+			if (v instanceof ListVal) {
+				ListVal l = (ListVal) v;
+				for (int j = 0; j < l.size(); j++)
+					elems[i++] = l.get(j);
+				v = l.tail();
+			} else {
+				elems[i++] = ((PairVal) v).fst();
+				v = ((PairVal) v).snd();
+			}
+		return elems;
+	}
+
+	private static Value list(Value lst) throws ProgramError {
+		length(lst); // Checks that lst is a list
+		return lst;
+	}
+
+	private static Value list(Value[] elems, int size) {
+		return ListVal.of(elems, size, Null.v);
+	}
+}
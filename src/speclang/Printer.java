@@ -71,6 +71,13 @@ public class Printer {
 			return "(eval " + e.code().accept(this, env) + ")";
 		}
 
+		public String visit(AST.PrimitiveExp e, Env<Void> env) throws ProgramError {
+			String result = "(" + e.primitive().name();
+			for (AST.Exp arg : e.args())
+				result += " " + arg.accept(this, env);
+			return result + ")";
+		}
+
 		public String visit(AST.MultExp e, Env<Void> env) throws ProgramError {
 			String result = "(* ";
 			for (AST.Exp exp : e.all())
@@ -125,6 +132,8 @@ public class Printer {
 		}
 
 		public String visit(AST.CallExp e, Env<Void> env) throws ProgramError {
+			if (e.origin() != null)
+				return e.origin().accept(this, env);
 			String result = "(";
 			result += e.operator().accept(this, env) + " ";
 			for (AST.Exp exp : e.operands())
@@ -201,6 +210,41 @@ public class Printer {
 			return result + ")";
 		}
 
+		public String visit(AST.VectorExp e, Env<Void> env) throws ProgramError {
+			String result = "(vector ";
+			for (AST.Exp exp : e.elems())
+				result += exp.accept(this, env) + " ";
+			return result + ")";
+		}
+
+		public String visit(AST.MakeVectorExp e, Env<Void> env) throws ProgramError {
+			String result = "(make-vector ";
+			result += e.size().accept(this, env) + " ";
+			result += e.init().accept(this, env);
+			return result + ")";
+		}
+
+		public String visit(AST.VectorRefExp e, Env<Void> env) throws ProgramError {
+			String result = "(vector-ref ";
+			result += e.vec().accept(this, env) + " ";
+			result += e.index().accept(this, env);
+			return result + ")";
+		}
+
+		public String visit(AST.VectorLengthExp e, Env<Void> env) throws ProgramError {
+			String result = "(vector-length ";
+			result += e.vec().accept(this, env);
+			return result + ")";
+		}
+
+		public String visit(AST.VectorSetExp e, Env<Void> env) throws ProgramError {
+			String result = "(vector-set! ";
+			result += e.vec().accept(this, env) + " ";
+			result += e.index().accept(this, env) + " ";
+			result += e.value_exp().accept(this, env);
+			return result + ")";
+		}
+
 		public String visit(AST.NullExp e, Env<Void> env) throws ProgramError {
 			String result = "(null? ";
 			result += e.arg().accept(this, env);
@@ -303,6 +347,10 @@ public class Printer {
 			return result + ")";
 		}
 
+		public String visit(AST.SharedExp e, Env<Void> env) throws ProgramError {
+			return e.exp().accept(this, env);
+		}
+
 		public String visit(AST.FuncSpec e, Env<Void> env) throws ProgramError {
 			String result = "";
 			List<AST.SpecCase> speccases = e.speccases();
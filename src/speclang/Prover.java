@@ -0,0 +1,321 @@
+package speclang;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import speclang.AST.*;
+import speclang.Env.*;
+import speclang.Type.*;
+
+/**
+ * A lightweight prover for specifications, run by the Checker on each
+ * lambda expression. It marks the spec cases whose preconditions always
+ * hold, and those whose postconditions hold whenever the case is selected.
+ * The engines do not check conditions so discharged at runtime.
+ *
+ * The prover bounds numbers by intervals: literals, arithmetic on bounded
+ * numbers, the branches of if expressions, and the formals that the
+ * preconditions of the case compare with a bound. Type predicates on a
+ * variable follow from the type the Checker computed for it. Conditions
+ * that do not follow from the bounds are given to a Verifier, which reasons
+ * along the paths through the body. Anything else is left to be checked.
+ *
+ * @author hridesh
+ *
+ */
+class Prover {
+	private int _cases = 0;
+	private int _discharged = 0;
+	private int _selected = 0;
+
+	/**
+	 * The bounds of a number that is not NaN.
+	 */
+	static class Range {
+		final double _lo;
+		final double _hi;
+
+		Range(double lo, double hi) {
+			_lo = lo;
+			_hi = hi;
+		}
+	}
+
+	/**
+	 * @return the number of spec cases seen since the counts were last reset.
+	 */
+	int cases() {
+		return _cases;
+	}
+
+	/**
+	 * @return the number of those whose postconditions are no longer checked.
+	 */
+	int discharged() {
+		return _discharged;
+	}
+
+	/**
+	 * @return the number of those whose preconditions always hold, whether
+	 *         or not their postconditions are still checked.
+	 */
+	int selected() {
+		return _selected;
+	}
+
+	void resetCounts() {
+		_cases = 0;
+		_discharged = 0;
+		_selected = 0;
+	}
+
+	/**
+	 * Marks what can be proven about the spec cases of e. The formals are
+	 * typed by pre_types, and also result by post_types.
+	 */
+	void discharge(LambdaExp e, Env<Type> pre_types, Env<Type> post_types) {
+		if (!(e.spec() instanceof FuncSpec))
+			return;
+		Env<Range> none = new EmptyEnv<Range>();
+		for (SpecCase speccase : ((FuncSpec) e.spec()).speccases()) {
+			_cases++;
+			Verifier verifier = new Verifier(e, speccase);
+			boolean selects = true;
+			for (Exp precondition : speccase.preconditions())
+				selects = selects && (proves(precondition, none, pre_types) || verifier.selects(precondition));
+			if (selects) {
+				speccase.setAlwaysSelects();
+				if (!speccase.preconditions().isEmpty())
+					_selected++;
+			}
+			Env<Range> facts = facts(e.formals(), speccase.preconditions());
+			Env<Range> post_env = new ExtendEnv<Range>(facts, "result", range(e.body(), facts));
+			boolean holds = true;
+			for (Exp postcondition : speccase.postconditions())
+				holds = holds && (proves(postcondition, post_env, post_types) || verifier.holds(postcondition));
+			if (holds) {
+				speccase.setAlwaysHolds();
+				if (!speccase.postconditions().isEmpty())
+					_discharged++;
+			}
+		}
+	}
+
+	/**
+	 * @return true if condition evaluates to #t, without error, whenever
+	 *         the variables are within ranges.
+	 */
+	private boolean proves(Exp condition, Env<Range> ranges, Env<Type> types) {
+		if (condition instanceof BoolExp)
+			return ((BoolExp) condition).v();
+		if (condition instanceof BinaryComparator) {
+			BinaryComparator c = (BinaryComparator) condition;
+			if (!total(c.first_exp()) || !total(c.second_exp()))
+				return false;
+			Range first = range(c.first_exp(), ranges);
+			Range second = range(c.second_exp(), ranges);
+			if (first == null || second == null)
+				return false;
+			if (c instanceof LessExp)
+				return first._hi < second._lo;
+			if (c instanceof LessEqExp)
+				return first._hi <= second._lo;
+			if (c instanceof GreaterExp)
+				return first._lo > second._hi;
+			if (c instanceof GreaterEqExp)
+				return first._lo >= second._hi;
+			if (c instanceof EqualExp)
+				return first._lo == first._hi && second._lo == second._hi && first._lo == second._lo;
+			return false;
+		}
+		if (condition instanceof IsNumberExp)
+			return typed(((IsNumberExp) condition).exp(), types) instanceof NumT;
+		if (condition instanceof IsBooleanExp)
+			return typed(((IsBooleanExp) condition).exp(), types) instanceof BoolT;
+		if (condition instanceof IsStringExp)
+			return typed(((IsStringExp) condition).exp(), types) instanceof StringT;
+		if (condition instanceof IsProcedureExp)
+			return typed(((IsProcedureExp) condition).exp(), types) instanceof FuncT;
+		if (condition instanceof IsUnitExp)
+			return typed(((IsUnitExp) condition).exp(), types) instanceof UnitT;
+		return false;
+	}
+
+	/**
+	 * @return the type of e if it is a variable, otherwise null.
+	 */
+	private static Type typed(Exp e, Env<Type> types) {
+		if (!(e instanceof VarExp))
+			return null;
+		try {
+			return types.get(((VarExp) e).name());
+		} catch (LookupException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if e evaluates without error.
+	 */
+	private static boolean total(Exp e) {
+		if (e instanceof NumExp || e instanceof VarExp || e instanceof BoolExp)
+			return true;
+		if (e instanceof CompoundArithExp) {
+			for (Exp operand : ((CompoundArithExp) e).all())
+				if (!total(operand))
+					return false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the bounds of the formals that the preconditions compare with
+	 *         a bound, and no bounds for the other formals.
+	 */
+	private Env<Range> facts(List<String> formals, List<Exp> preconditions) {
+		Map<String, Range> bounds = new HashMap<String, Range>();
+		Env<Range> none = new EmptyEnv<Range>();
+		for (Exp precondition : preconditions) {
+			if (!(precondition instanceof BinaryComparator))
+				continue;
+			BinaryComparator c = (BinaryComparator) precondition;
+			Exp first = c.first_exp(), second = c.second_exp();
+			if (first instanceof VarExp && formals.contains(((VarExp) first).name()))
+				bound(bounds, ((VarExp) first).name(), c, range(second, none), false);
+			else if (second instanceof VarExp && formals.contains(((VarExp) second).name()))
+				bound(bounds, ((VarExp) second).name(), c, range(first, none), true);
+		}
+		Env<Range> facts = none;
+		for (String formal : formals)
+			facts = new ExtendEnv<Range>(facts, formal, bounds.get(formal));
+		return facts;
+	}
+
+	/**
+	 * Narrows the bounds of name, which c compares with a number in other.
+	 * When flipped, name is the second operand of c.
+	 */
+	private static void bound(Map<String, Range> bounds, String name, BinaryComparator c, Range other,
+			boolean flipped) {
+		if (other == null)
+			return;
+		double inf = Double.POSITIVE_INFINITY;
+		Range range;
+		boolean less = c instanceof LessExp || c instanceof LessEqExp;
+		boolean greater = c instanceof GreaterExp || c instanceof GreaterEqExp;
+		if (c instanceof EqualExp)
+			range = other;
+		else if (less != flipped && (less || greater))
+			range = new Range(-inf, other._hi);
+		else if (less || greater)
+			range = new Range(other._lo, inf);
+		else
+			return;
+		Range old = bounds.get(name);
+		if (old != null)
+			range = new Range(Math.max(old._lo, range._lo), Math.min(old._hi, range._hi));
+		bounds.put(name, range);
+	}
+
+	/**
+	 * @return the bounds of the value of e when it evaluates to a number, or
+	 *         null if there are none.
+	 */
+	private Range range(Exp e, Env<Range> ranges) {
+		if (e instanceof NumExp) {
+			double v = ((NumExp) e).v();
+			return new Range(v, v);
+		}
+		if (e instanceof VarExp) {
+			try {
+				return ranges.get(((VarExp) e).name());
+			} catch (LookupException ex) {
+				return null;
+			}
+		}
+		if (e instanceof AddExp) {
+			// Sums are accumulated in an int, as in the Evaluator; the
+			// conversion is monotonic, so the bounds are the bounds' sums.
+			int lo = 0, hi = 0;
+			for (Exp operand : ((AddExp) e).all()) {
+				Range r = range(operand, ranges);
+				if (r == null)
+					return null;
+				lo += r._lo;
+				hi += r._hi;
+			}
+			return new Range(lo, hi);
+		}
+		if (e instanceof SubExp) {
+			List<Exp> operands = ((SubExp) e).all();
+			Range result = range(operands.get(0), ranges);
+			for (int i = 1; i < operands.size() && result != null; i++) {
+				Range r = range(operands.get(i), ranges);
+				result = r == null ? null : sum(result, new Range(-r._hi, -r._lo));
+			}
+			return result;
+		}
+		if (e instanceof MultExp) {
+			Range result = new Range(1, 1);
+			for (Exp operand : ((MultExp) e).all()) {
+				Range r = range(operand, ranges);
+				if (r == null)
+					return null;
+				result = product(result, r);
+				if (result == null)
+					return null;
+			}
+			return result;
+		}
+		if (e instanceof IfExp) {
+			IfExp ife = (IfExp) e;
+			Range then_range = range(ife.then_exp(), ranges);
+			Range else_range = range(ife.else_exp(), ranges);
+			if (then_range == null || else_range == null)
+				return null;
+			return new Range(Math.min(then_range._lo, else_range._lo), Math.max(then_range._hi, else_range._hi));
+		}
+		if (e instanceof LetExp) {
+			LetExp let = (LetExp) e;
+			Env<Range> body_ranges = ranges;
+			for (int i = 0; i < let.names().size(); i++)
+				body_ranges = new ExtendEnv<Range>(body_ranges, let.names().get(i),
+						range(let.value_exps().get(i), ranges));
+			return range(let.body(), body_ranges);
+		}
+		if (e instanceof LetrecExp) {
+			LetrecExp letrec = (LetrecExp) e;
+			Env<Range> body_ranges = ranges;
+			for (String name : letrec.names())
+				body_ranges = new ExtendEnv<Range>(body_ranges, name, null);
+			return range(letrec.body(), body_ranges);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the bounds of a sum, or null if it may be NaN.
+	 */
+	private static Range sum(Range a, Range b) {
+		double inf = Double.POSITIVE_INFINITY;
+		if ((a._hi == inf && b._lo == -inf) || (a._lo == -inf && b._hi == inf))
+			return null;
+		return new Range(a._lo + b._lo, a._hi + b._hi);
+	}
+
+	/**
+	 * @return the bounds of a product, or null if it may be NaN.
+	 */
+	private static Range product(Range a, Range b) {
+		if ((infinite(a) && b._lo <= 0 && 0 <= b._hi) || (infinite(b) && a._lo <= 0 && 0 <= a._hi))
+			return null;
+		double p1 = a._lo * b._lo, p2 = a._lo * b._hi, p3 = a._hi * b._lo, p4 = a._hi * b._hi;
+		return new Range(Math.min(Math.min(p1, p2), Math.min(p3, p4)), Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+	}
+
+	private static boolean infinite(Range r) {
+		return Double.isInfinite(r._lo) || Double.isInfinite(r._hi);
+	}
+}
@@ -1,9 +1,14 @@
 package speclang;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import speclang.AST.*;
+import speclang.Type.FuncT;
 
 /**
  * This main class implements the purity checker of the interpreter.
@@ -129,6 +134,34 @@ public class PurityChecker implements Visitor<Boolean, Type> {
 		return false;
 	}
 
+	public Boolean visit(VectorExp e, Env<Type> env) throws ProgramError {
+		boolean purity = true;
+		for (Exp elem : e.elems()) {
+			purity &= (Boolean) elem.accept(this, env);
+		}
+		return purity;
+	}
+
+	public Boolean visit(MakeVectorExp e, Env<Type> env) throws ProgramError {
+		return (Boolean) e.size().accept(this, env) && (Boolean) e.init().accept(this, env);
+	}
+
+	public Boolean visit(VectorRefExp e, Env<Type> env) throws ProgramError {
+		return (Boolean) e.vec().accept(this, env) && (Boolean) e.index().accept(this, env);
+	}
+
+	public Boolean visit(VectorLengthExp e, Env<Type> env) throws ProgramError {
+		return (Boolean) e.vec().accept(this, env);
+	}
+
+	public Boolean visit(VectorSetExp e, Env<Type> env) throws ProgramError {
+		return false;
+	}
+
+	public Boolean visit(SharedExp e, Env<Type> env) throws ProgramError {
+		return (Boolean) e.exp().accept(this, env);
+	}
+
 	public Boolean visit(UnitExp e, Env<Type> env) throws ProgramError {
 		return true;
 	}
@@ -211,6 +244,13 @@ public class PurityChecker implements Visitor<Boolean, Type> {
 		return false;
 	}
 
+	public Boolean visit(PrimitiveExp e, Env<Type> env) throws ProgramError {
+		boolean purity = true;
+		for (Exp arg : e.args())
+			purity = purity && (Boolean) arg.accept(this, env);
+		return purity;
+	}
+
 	@Override
 	public Boolean visit(IsNullExp e, Env<Type> env) throws ProgramError {
 		Boolean exp_free = (Boolean) e.exp().accept(this, env);
@@ -280,6 +320,110 @@ public class PurityChecker implements Visitor<Boolean, Type> {
 		return purity;
 	}
 
+	/**
+	 * Pure, and also neither reading nor allocating references or vectors,
+	 * whose contents may change between evaluations. Unlike the checks of
+	 * PurityChecker, those of Stateless follow calls: a call is stateless if
+	 * the function it calls is a lambda expression, or a variable the
+	 * Resolver bound to one, whose body and spec are stateless. Calls to
+	 * formals, and to anything else, are not.
+	 */
+	static class Stateless extends PurityChecker {
+		private final Map<LambdaExp, Boolean> _known = new IdentityHashMap<LambdaExp, Boolean>();
+		private final Set<LambdaExp> _active = Collections.newSetFromMap(new IdentityHashMap<LambdaExp, Boolean>());
+
+		/**
+		 * @return true if calls to e are stateless: its body, its spec and
+		 *         the functions they call.
+		 */
+		boolean check(LambdaExp e) throws ProgramError {
+			// A function being checked is assumed stateless in its own calls,
+			// so only results that rest on no such assumption are kept.
+			if (_active.contains(e))
+				return true;
+			Boolean known = _known.get(e);
+			if (known != null)
+				return known;
+			boolean outermost = _active.isEmpty();
+			_active.add(e);
+			boolean stateless;
+			try {
+				stateless = (Boolean) e.body().accept(this, null)
+						&& (e.spec() == null || (Boolean) e.spec().accept(this, null));
+			} finally {
+				_active.remove(e);
+			}
+			if (outermost || !stateless)
+				_known.put(e, stateless);
+			return stateless;
+		}
+
+		/**
+		 * @return the lambda expression that e evaluates to, if it is one or
+		 *         a variable bound to one, otherwise null.
+		 */
+		private static LambdaExp callee(Exp e) {
+			for (int i = 0; e instanceof VarExp && i < 16; i++) // Bindings may form a cycle
+				e = ((VarExp) e).binding();
+			return e instanceof LambdaExp ? (LambdaExp) e : null;
+		}
+
+		public Boolean visit(CallExp e, Env<Type> env) throws ProgramError {
+			for (Exp operand : e.operands())
+				if (!(Boolean) operand.accept(this, env))
+					return false;
+			LambdaExp callee = callee(e.operator());
+			if (callee == null)
+				return false;
+			if (callee.body() instanceof PrimitiveExp)
+				return primitive(((PrimitiveExp) callee.body()).primitive(), e.operands());
+			return check(callee);
+		}
+
+		public Boolean visit(PrimitiveExp e, Env<Type> env) throws ProgramError {
+			return primitive(e.primitive(), e.args());
+		}
+
+		/**
+		 * @return true if p applied to args is stateless. The functions p calls
+		 *         are its arguments of function type.
+		 */
+		private boolean primitive(Primitives.Primitive p, List<Exp> args) throws ProgramError {
+			if (!p.stateless())
+				return false;
+			List<Type> types = p.type().argTypes();
+			for (int i = 0; i < args.size(); i++) {
+				if (!(Boolean) args.get(i).accept(this, null))
+					return false;
+				if (types.get(i) instanceof FuncT) {
+					LambdaExp f = callee(args.get(i));
+					if (f == null || !check(f))
+						return false;
+				}
+			}
+			return true;
+		}
+		public Boolean visit(RefExp e, Env<Type> env) throws ProgramError {
+			return false;
+		}
+
+		public Boolean visit(DerefExp e, Env<Type> env) throws ProgramError {
+			return false;
+		}
+
+		public Boolean visit(VectorExp e, Env<Type> env) throws ProgramError {
+			return false;
+		}
+
+		public Boolean visit(MakeVectorExp e, Env<Type> env) throws ProgramError {
+			return false;
+		}
+
+		public Boolean visit(VectorRefExp e, Env<Type> env) throws ProgramError {
+			return false;
+		}
+	}
+
 	public static void main(String[] args) {
 		System.out.println("SpecLang: Type a program to check its purity press the enter key,\n"
 				+ "e.g. (> (deref x) (set! x 0)) \n" + "or try  (> result 7) \n"
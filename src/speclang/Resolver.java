@@ -0,0 +1,428 @@
+package speclang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import speclang.AST.*;
+
+/**
+ * This pass runs after type checking and before evaluation. It annotates
+ * every variable reference with its lexical address, so that the evaluator
+ * can find a binding without comparing names: a local variable gets the
+ * number of frames to skip and its slot within the frame, a global variable
+ * gets its index into the global table.
+ *
+ * Variables that cannot be resolved, e.g. in unchecked programs passed to
+ * eval, are left unresolved and are looked up by name at run time.
+ *
+ * A variable bound by a define, let or letrec also gets the expression it
+ * is bound to, so that checks of a body can follow the calls it makes.
+ *
+ * @author hridesh
+ *
+ */
+public class Resolver implements Visitor<Void, Void> {
+
+	/**
+	 * A static scope mirrors a frame that the evaluator pushes on the
+	 * environment at run time.
+	 */
+	private static class Scope {
+		final Scope _parent;
+		final List<String> _names;
+		final List<Exp> _values; // null for formals
+		final boolean _rec; // letrec finds the first of duplicate names
+		final boolean _group; // the functions of a letrec, seen from their bodies
+
+		Scope(Scope parent, List<String> names, List<Exp> values, boolean rec) {
+			this(parent, names, values, rec, false);
+		}
+
+		Scope(Scope parent, List<String> names, List<Exp> values, boolean rec, boolean group) {
+			_parent = parent;
+			_names = names;
+			_values = values;
+			_rec = rec;
+			_group = group;
+		}
+	}
+
+	private final Env.GlobalEnv<Value> _globals;
+	private final Map<Integer, Exp> _definitions = new HashMap<Integer, Exp>(); // By global slot
+	private Scope _scope = null;
+	private int _define = -1; // The global slot of the define being resolved
+
+	public Resolver(Env.GlobalEnv<Value> globals) {
+		_globals = globals;
+	}
+
+	Program resolve(Program p) throws ProgramError {
+		p.accept(this, null);
+		return p;
+	}
+
+	private void resolveIn(Scope scope, ASTNode n) throws ProgramError {
+		Scope saved = _scope;
+		_scope = scope;
+		try {
+			n.accept(this, null);
+		} finally {
+			_scope = saved;
+		}
+	}
+
+	private void resolveAll(List<? extends ASTNode> nodes) throws ProgramError {
+		for (ASTNode n : nodes)
+			n.accept(this, null);
+	}
+
+	public Void visit(Program p, Env<Void> env) throws ProgramError {
+		for (DefineDecl d : p.decls())
+			d.accept(this, env);
+		p.e().accept(this, env);
+		return null;
+	}
+
+	public Void visit(DefineDecl d, Env<Void> env) throws ProgramError {
+		// The defined name is visible in its own body, so that recursive
+		// functions refer to themselves.
+		d.resolve(_globals.define(d.name()));
+		_definitions.put(d.slot(), d.value_exp());
+		int saved = _define;
+		_define = d.slot();
+		try {
+			d.value_exp().accept(this, env);
+		} finally {
+			_define = saved;
+		}
+		return null;
+	}
+
+	public Void visit(VarExp e, Env<Void> env) throws ProgramError {
+		String name = e.name();
+		int depth = 0;
+		for (Scope s = _scope; s != null; s = s._parent, depth++) {
+			int slot = s._rec ? s._names.indexOf(name) : s._names.lastIndexOf(name);
+			if (slot >= 0) {
+				e.resolve(depth, slot);
+				e.bind(s._values == null ? null : s._values.get(slot));
+				return null;
+			}
+		}
+		int slot = _globals.slot(name);
+		if (slot >= 0) {
+			e.resolve(VarExp.GLOBAL, slot);
+			e.bind(definition(name, slot));
+		}
+		return null;
+	}
+
+	/**
+	 * @return the expression of the define of a global, or the lambda of the
+	 *         primitive that the engine bound it to.
+	 */
+	private Exp definition(String name, int slot) {
+		Exp definition = _definitions.get(slot);
+		Primitives.Primitive primitive = Primitives.get(name);
+		if (definition == null && primitive != null) {
+			definition = Primitives.lambda(primitive);
+			_definitions.put(slot, definition);
+		}
+		return definition;
+	}
+
+	public Void visit(LetExp e, Env<Void> env) throws ProgramError {
+		resolveAll(e.value_exps());
+		resolveIn(new Scope(_scope, e.names(), e.value_exps(), false), e.body());
+		return null;
+	}
+
+	public Void visit(LetrecExp e, Env<Void> env) throws ProgramError {
+		Scope group = new Scope(_scope, e.names(), e.fun_exps(), true, true);
+		for (Exp fun_exp : e.fun_exps())
+			resolveIn(group, fun_exp);
+		resolveIn(new Scope(_scope, e.names(), e.fun_exps(), true), e.body());
+		return null;
+	}
+
+	public Void visit(LambdaExp e, Env<Void> env) throws ProgramError {
+		Scope scope = new Scope(_scope, e.formals(), null, false);
+		resolveIn(scope, e.body());
+		markTailCalls(e.body());
+		if (e.spec() instanceof FuncSpec) {
+			// Preconditions see the formals, postconditions also see result.
+			List<String> result = new ArrayList<String>();
+			result.add("result");
+			Scope post_scope = new Scope(scope, result, null, false);
+			// Shared expressions are evaluated where the formals are bound.
+			for (Exp shared : ((FuncSpec) e.spec()).shared())
+				resolveIn(scope, shared);
+			for (SpecCase speccase : ((FuncSpec) e.spec()).speccases()) {
+				for (Exp precondition : speccase.preconditions())
+					resolveIn(scope, precondition);
+				for (Exp postcondition : speccase.postconditions())
+					resolveIn(post_scope, postcondition);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Marks the calls whose value is the value of a function body, so that
+	 * the evaluator can run them without growing the stack.
+	 */
+	private static void markTailCalls(Exp e) {
+		if (e instanceof CallExp)
+			((CallExp) e).setTail();
+		else if (e instanceof IfExp) {
+			markTailCalls(((IfExp) e).then_exp());
+			markTailCalls(((IfExp) e).else_exp());
+		} else if (e instanceof LetExp)
+			markTailCalls(((LetExp) e).body());
+		else if (e instanceof LetrecExp)
+			markTailCalls(((LetrecExp) e).body());
+	}
+
+	public Void visit(CallExp e, Env<Void> env) throws ProgramError {
+		e.operator().accept(this, env);
+		resolveAll(e.operands());
+		if (e.operator() instanceof VarExp && recursive((VarExp) e.operator()))
+			e.setRecursive();
+		return null;
+	}
+
+	/**
+	 * @return true if operator refers to the function of the enclosing
+	 *         define, or to a function of an enclosing letrec from the
+	 *         functions of that letrec.
+	 */
+	private boolean recursive(VarExp operator) {
+		int depth = operator.depth();
+		if (depth == VarExp.GLOBAL)
+			return operator.slot() == _define;
+		if (depth < 0)
+			return false;
+		Scope s = _scope;
+		for (int i = 0; i < depth; i++)
+			s = s._parent;
+		return s._group;
+	}
+
+	public Void visit(IfExp e, Env<Void> env) throws ProgramError {
+		e.conditional().accept(this, env);
+		e.then_exp().accept(this, env);
+		e.else_exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(AddExp e, Env<Void> env) throws ProgramError {
+		resolveAll(e.all());
+		return null;
+	}
+
+	public Void visit(SubExp e, Env<Void> env) throws ProgramError {
+		resolveAll(e.all());
+		return null;
+	}
+
+	public Void visit(MultExp e, Env<Void> env) throws ProgramError {
+		resolveAll(e.all());
+		return null;
+	}
+
+	public Void visit(DivExp e, Env<Void> env) throws ProgramError {
+		resolveAll(e.all());
+		return null;
+	}
+
+	public Void visit(LessExp e, Env<Void> env) throws ProgramError {
+		return visitBinaryComparator(e, env);
+	}
+
+	public Void visit(LessEqExp e, Env<Void> env) throws ProgramError {
+		return visitBinaryComparator(e, env);
+	}
+
+	public Void visit(EqualExp e, Env<Void> env) throws ProgramError {
+		return visitBinaryComparator(e, env);
+	}
+
+	public Void visit(GreaterExp e, Env<Void> env) throws ProgramError {
+		return visitBinaryComparator(e, env);
+	}
+
+	public Void visit(GreaterEqExp e, Env<Void> env) throws ProgramError {
+		return visitBinaryComparator(e, env);
+	}
+
+	private Void visitBinaryComparator(BinaryComparator e, Env<Void> env) throws ProgramError {
+		e.first_exp().accept(this, env);
+		e.second_exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(CarExp e, Env<Void> env) throws ProgramError {
+		e.arg().accept(this, env);
+		return null;
+	}
+
+	public Void visit(CdrExp e, Env<Void> env) throws ProgramError {
+		e.arg().accept(this, env);
+		return null;
+	}
+
+	public Void visit(ConsExp e, Env<Void> env) throws ProgramError {
+		e.fst().accept(this, env);
+		e.snd().accept(this, env);
+		return null;
+	}
+
+	public Void visit(ListExp e, Env<Void> env) throws ProgramError {
+		resolveAll(e.elems());
+		return null;
+	}
+
+	public Void visit(VectorExp e, Env<Void> env) throws ProgramError {
+		resolveAll(e.elems());
+		return null;
+	}
+
+	public Void visit(MakeVectorExp e, Env<Void> env) throws ProgramError {
+		e.size().accept(this, env);
+		e.init().accept(this, env);
+		return null;
+	}
+
+	public Void visit(VectorRefExp e, Env<Void> env) throws ProgramError {
+		e.vec().accept(this, env);
+		e.index().accept(this, env);
+		return null;
+	}
+
+	public Void visit(VectorLengthExp e, Env<Void> env) throws ProgramError {
+		e.vec().accept(this, env);
+		return null;
+	}
+
+	public Void visit(VectorSetExp e, Env<Void> env) throws ProgramError {
+		e.vec().accept(this, env);
+		e.index().accept(this, env);
+		e.value_exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(NullExp e, Env<Void> env) throws ProgramError {
+		e.arg().accept(this, env);
+		return null;
+	}
+
+	public Void visit(EvalExp e, Env<Void> env) throws ProgramError {
+		e.code().accept(this, env);
+		return null;
+	}
+
+	public Void visit(PrimitiveExp e, Env<Void> env) throws ProgramError {
+		resolveAll(e.args());
+		return null;
+	}
+
+	public Void visit(ReadExp e, Env<Void> env) throws ProgramError {
+		e.file().accept(this, env);
+		return null;
+	}
+
+	public Void visit(IsNullExp e, Env<Void> env) throws ProgramError {
+		e.exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(IsProcedureExp e, Env<Void> env) throws ProgramError {
+		e.exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(IsListExp e, Env<Void> env) throws ProgramError {
+		e.exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(IsPairExp e, Env<Void> env) throws ProgramError {
+		e.exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(IsUnitExp e, Env<Void> env) throws ProgramError {
+		e.exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(IsNumberExp e, Env<Void> env) throws ProgramError {
+		e.exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(IsStringExp e, Env<Void> env) throws ProgramError {
+		e.exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(IsBooleanExp e, Env<Void> env) throws ProgramError {
+		e.exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(RefExp e, Env<Void> env) throws ProgramError {
+		e.value_exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(DerefExp e, Env<Void> env) throws ProgramError {
+		e.loc_exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(AssignExp e, Env<Void> env) throws ProgramError {
+		e.lhs_exp().accept(this, env);
+		e.rhs_exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(FreeExp e, Env<Void> env) throws ProgramError {
+		e.value_exp().accept(this, env);
+		return null;
+	}
+
+	public Void visit(SharedExp e, Env<Void> env) throws ProgramError {
+		return null; // Shared expressions are resolved along with their lambda
+	}
+
+	public Void visit(UnitExp e, Env<Void> env) throws ProgramError {
+		return null;
+	}
+
+	public Void visit(NumExp e, Env<Void> env) throws ProgramError {
+		return null;
+	}
+
+	public Void visit(StrExp e, Env<Void> env) throws ProgramError {
+		return null;
+	}
+
+	public Void visit(BoolExp e, Env<Void> env) throws ProgramError {
+		return null;
+	}
+
+	public Void visit(ErrorExp e, Env<Void> env) throws ProgramError {
+		return null;
+	}
+
+	public Void visit(FuncSpec s, Env<Void> env) throws ProgramError {
+		return null; // Specifications are resolved along with their lambda
+	}
+
+	public Void visit(SpecCase s, Env<Void> env) throws ProgramError {
+		return null;
+	}
+}
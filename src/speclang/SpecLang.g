@@ -56,6 +56,11 @@ grammar SpecLang;
     	| deref=derefexp { $ast = $deref.ast; }
     	| assign=assignexp { $ast = $assign.ast; }
     	| free=freeexp { $ast = $free.ast; }
+    	| vec=vectorexp { $ast = $vec.ast; }
+    	| mkvec=makevectorexp { $ast = $mkvec.ast; }
+    	| vref=vectorrefexp { $ast = $vref.ast; }
+    	| vlen=vectorlengthexp { $ast = $vlen.ast; }
+    	| vset=vectorsetexp { $ast = $vset.ast; }
     	;
  
  // ******************* New Specifications for SpecLang **********************
@@ -87,6 +92,7 @@ type returns [Type ty]:
 		| fty=funtype { $ty = $fty.ty; }
 		| nty=numtype { $ty = $nty.ty; }
 		| lty=listtype { $ty = $lty.ty; }
+		| vty=vectype { $ty = $vty.ty; }
 		| pty=pairtype { $ty = $pty.ty; }
 		| rty=reftype { $ty = $rty.ty; }
 		| sty=stringtype { $ty = $sty.ty; }
@@ -114,6 +120,10 @@ listtype returns [ListT ty] :
  		ListT '<' ty1=type '>' { $ty = new ListT($ty1.ty); }
  		;
 
+vectype returns [VecT ty] :
+ 		VecT '<' ty1=type '>' { $ty = new VecT($ty1.ty); }
+ 		;
+
 pairtype returns [PairT ty] :
  		'(' 
  			ty1=type ',' ty2=type 
@@ -320,6 +330,44 @@ unittype returns [UnitT ty] :
  		    e=exp 
  		')' { $ast = new NullExp($e.ast); }
  		;
+
+// Expressions related to vector
+
+ vectorexp returns [VectorExp ast] 
+        locals [ArrayList<Exp> list]
+ 		@init { $list = new ArrayList<Exp>(); } :
+ 		'(' Vector ':' ty=type
+ 		    ( e=exp { $list.add($e.ast); } )* 
+ 		')' { $ast = new VectorExp($ty.ty,$list); }
+ 		;
+
+ makevectorexp returns [MakeVectorExp ast] :
+ 		'(' MakeVector 
+ 		    e1=exp 
+ 			e2=exp 
+ 		')' { $ast = new MakeVectorExp($e1.ast,$e2.ast); }
+ 		;
+
+ vectorrefexp returns [VectorRefExp ast] :
+ 		'(' VectorRef 
+ 		    e1=exp 
+ 			e2=exp 
+ 		')' { $ast = new VectorRefExp($e1.ast,$e2.ast); }
+ 		;
+
+ vectorlengthexp returns [VectorLengthExp ast] :
+ 		'(' VectorLength 
+ 		    e=exp 
+ 		')' { $ast = new VectorLengthExp($e.ast); }
+ 		;
+
+ vectorsetexp returns [VectorSetExp ast] :
+ 		'(' VectorSet 
+ 		    e1=exp 
+ 			e2=exp 
+ 			e3=exp 
+ 		')' { $ast = new VectorSetExp($e1.ast,$e2.ast,$e3.ast); }
+ 		;
  
  strexp returns [StrExp ast] :
  		s=StrLiteral { $ast = new StrExp($s.text); } 
@@ -402,6 +450,11 @@ unittype returns [UnitT ty] :
  Cons : 'cons' ; 
  List : 'list' ; 
  Null : 'null?' ; 
+ Vector : 'vector' ; 
+ MakeVector : 'make-vector' ; 
+ VectorRef : 'vector-ref' ; 
+ VectorLength : 'vector-length' ; 
+ VectorSet : 'vector-set!' ; 
  Less : '<' ;
  LessEq : '<=' ;
  Equal : '=' ;
@@ -417,6 +470,7 @@ unittype returns [UnitT ty] :
  Num : 'num' ;
  Bool : 'bool' ;
  ListT : 'List' ;
+ VecT : 'Vec' ;
  RefT : 'Ref' ;
  StringT : 'string' ;
  UnitT : 'unit' ;
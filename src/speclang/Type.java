@@ -143,6 +143,30 @@ public interface Type {
 		}
 	}
 
+	static class VecT implements Type {
+		protected Type _elemType;
+
+		public VecT(Type elemType) {
+			_elemType = elemType;
+		}
+
+		public Type elemType() {
+			return _elemType;
+		}
+
+		public java.lang.String tostring() {
+			return "Vec<" + _elemType.tostring() + ">";
+		}
+
+		public boolean typeEqual(Type other) {
+			if (other instanceof VecT) {
+				VecT vt = (VecT) other;
+				return _elemType.typeEqual(vt._elemType);
+			}
+			return false;
+		}
+	}
+
 	static class FuncT implements Type {
 		protected List<Type> _argTypes;
 		protected Type _returnType;
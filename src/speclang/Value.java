@@ -1,5 +1,7 @@
 package speclang;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import speclang.AST.Exp;
@@ -23,6 +25,16 @@ public interface Value {
 		public int loc() {
 			return _loc;
 		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof RefVal && ((RefVal) o)._loc == _loc;
+		}
+
+		@Override
+		public int hashCode() {
+			return _loc;
+		}
 	}
 
 	static class FunVal implements Value {
@@ -30,6 +42,8 @@ public interface Value {
 		private List<String> _formals;
 		private Spec _spec;
 		private Exp _body;
+		private Memoizer.Table _memo = null;
+		private ContractPolicy _policy = null;
 
 		public FunVal(Env<Value> env, List<String> formals, Spec spec, Exp body) {
 			_env = env;
@@ -54,6 +68,30 @@ public interface Value {
 			return _body;
 		}
 
+		/**
+		 * @return the results of earlier calls, or null if calls to this
+		 *         function are not memoized.
+		 */
+		public Memoizer.Table memo() {
+			return _memo;
+		}
+
+		void setMemo(Memoizer.Table memo) {
+			_memo = memo;
+		}
+
+		/**
+		 * @return the contract policy of this function, or null if calls to
+		 *         it follow the policy of the evaluator.
+		 */
+		public ContractPolicy policy() {
+			return _policy;
+		}
+
+		void setPolicy(ContractPolicy policy) {
+			_policy = policy;
+		}
+
 		public String tostring() {
 			String result = "(lambda ( ";
 			for (String formal : _formals)
@@ -83,10 +121,41 @@ public interface Value {
 			_val = v;
 		}
 
+		// Values are immutable, so small integers can be shared.
+		private static final int CACHE_LOW = -128;
+		private static final int CACHE_HIGH = 1024;
+		private static final NumVal[] cache = new NumVal[CACHE_HIGH - CACHE_LOW + 1];
+		static {
+			for (int i = 0; i < cache.length; i++)
+				cache[i] = new NumVal(i + CACHE_LOW);
+		}
+
+		/**
+		 * @return the cached value for small integers, a new value otherwise.
+		 */
+		public static NumVal of(double v) {
+			int i = (int) v;
+			if (i == v && i >= CACHE_LOW && i <= CACHE_HIGH && (i != 0 || Double.doubleToRawLongBits(v) == 0L))
+				return cache[i - CACHE_LOW];
+			return new NumVal(v);
+		}
+
 		public double v() {
 			return _val;
 		}
 
+		// -0.0 and 0.0 are different values, NaN is equal to itself.
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof NumVal
+					&& Double.doubleToLongBits(((NumVal) o)._val) == Double.doubleToLongBits(_val);
+		}
+
+		@Override
+		public int hashCode() {
+			return Double.hashCode(_val);
+		}
+
 		public String tostring() {
 			int tmp = (int) _val;
 			if (tmp == _val)
@@ -96,16 +165,33 @@ public interface Value {
 	}
 
 	static class BoolVal implements Value {
+		public static final BoolVal TRUE = new BoolVal(true);
+		public static final BoolVal FALSE = new BoolVal(false);
+
 		private boolean _val;
 
 		public BoolVal(boolean v) {
 			_val = v;
 		}
 
+		public static BoolVal of(boolean v) {
+			return v ? TRUE : FALSE;
+		}
+
 		public boolean v() {
 			return _val;
 		}
 
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof BoolVal && ((BoolVal) o)._val == _val;
+		}
+
+		@Override
+		public int hashCode() {
+			return Boolean.hashCode(_val);
+		}
+
 		public String tostring() {
 			if (_val)
 				return "#t";
@@ -124,6 +210,16 @@ public interface Value {
 			return _val;
 		}
 
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof StringVal && ((StringVal) o)._val.equals(_val);
+		}
+
+		@Override
+		public int hashCode() {
+			return _val.hashCode();
+		}
+
 		public java.lang.String tostring() {
 			return "" + _val;
 		}
@@ -132,6 +228,7 @@ public interface Value {
 	static class PairVal implements Value {
 		protected Value _fst;
 		protected Value _snd;
+		private int _hash = 0; // Computed once, pairs are immutable
 
 		public PairVal(Value fst, Value snd) {
 			_fst = fst;
@@ -146,39 +243,314 @@ public interface Value {
 			return _snd;
 		}
 
+		/**
+		 * Pairs are equal if their elements are. Lists are compared in a
+		 * loop, so long lists do not exhaust the stack.
+		 */
+		@Override
+		public boolean equals(Object o) {
+			Value v = this;
+			while (v instanceof PairVal && o instanceof PairVal) {
+				if (v == o)
+					return true;
+				PairVal p = (PairVal) v, q = (PairVal) o;
+				if (p.hashCode() != q.hashCode() || !p.fst().equals(q.fst()))
+					return false;
+				v = p.snd();
+				o = q.snd();
+			}
+			return v.equals(o);
+		}
+
+		/**
+		 * The hash of a list is computed from its last pair backwards, and
+		 * kept in each pair. A ListVal keeps the hashes of its own elements.
+		 */
+		@Override
+		public int hashCode() {
+			if (_hash != 0)
+				return _hash;
+			ArrayList<PairVal> pairs = new ArrayList<PairVal>();
+			Value v = this;
+			while (v instanceof PairVal && !(v instanceof ListVal) && ((PairVal) v)._hash == 0) {
+				pairs.add((PairVal) v);
+				v = ((PairVal) v)._snd;
+			}
+			int hash = v.hashCode();
+			for (int i = pairs.size() - 1; i >= 0; i--) {
+				PairVal p = pairs.get(i);
+				hash = 31 * hash + p._fst.hashCode();
+				if (hash == 0)
+					hash = 1; // 0 means not computed
+				p._hash = hash;
+			}
+			return _hash;
+		}
+
 		public java.lang.String tostring() {
 			if (isList())
 				return listToString();
-			return "(" + _fst.tostring() + " " + _snd.tostring() + ")";
+			return "(" + fst().tostring() + " " + snd().tostring() + ")";
 		}
 
 		boolean isList() {
-			if (_snd instanceof Value.Null)
+			Value snd = snd();
+			if (snd instanceof Value.Null)
 				return true;
-			if (_snd instanceof Value.PairVal && ((Value.PairVal) _snd).isList())
+			if (snd instanceof Value.PairVal && ((Value.PairVal) snd).isList())
 				return true;
 			return false;
 		}
 
 		java.lang.String listToString() {
 			String result = "(";
-			result += _fst.tostring();
-			Value next = _snd;
+			result += fst().tostring();
+			Value next = snd();
 			while (!(next instanceof Value.Null)) {
-				result += " " + ((PairVal) next)._fst.tostring();
-				next = ((PairVal) next)._snd;
+				result += " " + ((PairVal) next).fst().tostring();
+				next = ((PairVal) next).snd();
 			}
 			return result + ")";
 		}
 	}
 
+	/**
+	 * A list whose first elements are kept in an array instead of a chain
+	 * of pairs, followed by a tail, usually (). To car, cdr and the
+	 * predicates it is a pair: its cdr is a view of the same array from the
+	 * next element, so walking down the list reads the array in order. Like
+	 * pairs, these lists are immutable.
+	 */
+	static class ListVal extends PairVal {
+		private final Cells _cells;
+		private final int _offset;
+
+		/**
+		 * The elements and tail that the views of a list share.
+		 */
+		private static class Cells {
+			final Value[] _elems;
+			final Value _tail;
+			volatile int[] _hashes = null; // Of each view, computed once
+
+			Cells(Value[] elems, Value tail) {
+				_elems = elems;
+				_tail = tail;
+			}
+		}
+
+		private ListVal(Cells cells, int offset) {
+			super(null, null);
+			_cells = cells;
+			_offset = offset;
+		}
+
+		/**
+		 * @return the list of elems[0..size) followed by tail. The list keeps
+		 *         elems, which must not change afterwards, if size is its
+		 *         length.
+		 */
+		static Value of(Value[] elems, int size, Value tail) {
+			if (size == 0)
+				return tail;
+			if (size < elems.length)
+				elems = Arrays.copyOf(elems, size);
+			return new ListVal(new Cells(elems, tail), 0);
+		}
+
+		static Value of(Value[] elems) {
+			return of(elems, elems.length, Null.v);
+		}
+
+		public Value fst() {
+			return _cells._elems[_offset];
+		}
+
+		public Value snd() {
+			return drop(1);
+		}
+
+		/**
+		 * @return the number of elements in the array, from this view on.
+		 */
+		int size() {
+			return _cells._elems.length - _offset;
+		}
+
+		Value get(int i) {
+			return _cells._elems[_offset + i];
+		}
+
+		Value tail() {
+			return _cells._tail;
+		}
+
+		/**
+		 * @return the list after its first n elements, for n at most size().
+		 */
+		Value drop(int n) {
+			return n < size() ? new ListVal(_cells, _offset + n) : _cells._tail;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof ListVal && ((ListVal) o)._cells == _cells && ((ListVal) o)._offset == _offset)
+				return true;
+			return super.equals(o);
+		}
+
+		@Override
+		public int hashCode() {
+			int[] hashes = _cells._hashes;
+			if (hashes == null) {
+				Value[] elems = _cells._elems;
+				hashes = new int[elems.length];
+				int hash = _cells._tail.hashCode();
+				for (int i = elems.length - 1; i >= 0; i--) {
+					hash = 31 * hash + elems[i].hashCode();
+					if (hash == 0)
+						hash = 1; // As in PairVal
+					hashes[i] = hash;
+				}
+				_cells._hashes = hashes;
+			}
+			return hashes[_offset];
+		}
+
+		@Override
+		boolean isList() {
+			Value tail = _cells._tail;
+			return tail instanceof Null || tail instanceof PairVal && ((PairVal) tail).isList();
+		}
+	}
+
 	static class Null implements Value {
+		public static final Null v = new Null();
+
 		public Null() {
 		}
 
 		public String tostring() {
 			return "()";
 		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Null;
+		}
+
+		@Override
+		public int hashCode() {
+			return 1;
+		}
+	}
+
+	/**
+	 * A vector of values, indexed in constant time. Vectors can be changed
+	 * in place, so a vector is only equal to itself.
+	 *
+	 * A vector whose elements are all numbers keeps them unboxed in a
+	 * double[], which the bulk primitives loop over. It switches to boxed
+	 * elements if a value that is not a number is stored in it.
+	 */
+	static class VectorVal implements Value {
+		private Value[] _elems; // Null while the elements are in _nums
+		private double[] _nums;
+
+		public VectorVal(Value[] elems) {
+			_elems = elems;
+		}
+
+		public VectorVal(double[] nums) {
+			_nums = nums;
+		}
+
+		/**
+		 * @return a vector of elems, unboxed if they are all numbers.
+		 */
+		static VectorVal of(Value[] elems) {
+			double[] nums = new double[elems.length];
+			for (int i = 0; i < elems.length; i++) {
+				if (!(elems[i] instanceof NumVal))
+					return new VectorVal(elems);
+				nums[i] = ((NumVal) elems[i]).v();
+			}
+			return new VectorVal(nums);
+		}
+
+		/**
+		 * @return a vector of size elements that are all init.
+		 */
+		static VectorVal make(Value size, Value init) throws ProgramError {
+			double n = ((NumVal) size).v();
+			if (!(n >= 0 && n <= Integer.MAX_VALUE - 8 && n == Math.floor(n)))
+				throw new ProgramError("Cannot make a vector of " + size.tostring() + " elements");
+			if (init instanceof NumVal) {
+				double[] nums = new double[(int) n];
+				Arrays.fill(nums, ((NumVal) init).v());
+				return new VectorVal(nums);
+			}
+			Value[] elems = new Value[(int) n];
+			Arrays.fill(elems, init);
+			return new VectorVal(elems);
+		}
+
+		/**
+		 * @return the unboxed elements, or null if they are boxed. Changes
+		 *         to the array are changes to this vector.
+		 */
+		double[] nums() {
+			return _nums;
+		}
+
+		public int length() {
+			return _nums != null ? _nums.length : _elems.length;
+		}
+
+		public Value get(Value index) throws ProgramError {
+			return get(index(index));
+		}
+
+		Value get(int i) {
+			return _nums != null ? NumVal.of(_nums[i]) : _elems[i];
+		}
+
+		public Value set(Value index, Value v) throws ProgramError {
+			int i = index(index);
+			if (_nums != null && v instanceof NumVal)
+				_nums[i] = ((NumVal) v).v();
+			else {
+				if (_nums != null)
+					box();
+				_elems[i] = v;
+			}
+			return v;
+		}
+
+		private void box() {
+			_elems = new Value[_nums.length];
+			for (int i = 0; i < _nums.length; i++)
+				_elems[i] = NumVal.of(_nums[i]);
+			_nums = null;
+		}
+
+		private int index(Value index) throws ProgramError {
+			double i = ((NumVal) index).v();
+			if (!(i >= 0 && i < length() && i == Math.floor(i)))
+				throw new ProgramError(
+						"Index " + index.tostring() + " is out of range for a vector of length " + length());
+			return (int) i;
+		}
+
+		public String tostring() {
+			StringBuilder result = new StringBuilder("#(");
+			for (int i = 0; i < length(); i++) {
+				if (i > 0)
+					result.append(' ');
+				result.append(get(i).tostring());
+			}
+			return result.append(')').toString();
+		}
 	}
 
 	static class UnitVal implements Value {
@@ -187,6 +559,16 @@ public interface Value {
 		public String tostring() {
 			return "";
 		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof UnitVal;
+		}
+
+		@Override
+		public int hashCode() {
+			return 2;
+		}
 	}
 
 }
@@ -0,0 +1,393 @@
+package speclang;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import speclang.AST.*;
+import speclang.Env.*;
+
+/**
+ * A verifier for the numeric conditions of one spec case, used by the
+ * Prover. It follows the paths through the if expressions of the lambda
+ * body. A condition is proven when the preconditions, the conditions taken
+ * along a path and the negated condition have no solution on any path.
+ * That is decided by Fourier-Motzkin elimination with exact arithmetic.
+ *
+ * Doubles round and can be NaN, so the verifier only uses comparisons
+ * whose operands are a number, a variable or a negated variable. Any other
+ * numeric expression is opaque. Any order-preserving solution over doubles
+ * is then also a solution over the reals. A condition that failed says
+ * nothing about operands that may be NaN.
+ *
+ * @author hridesh
+ *
+ */
+class Verifier {
+	static final int MAX_PATHS = 32;
+	static final int MAX_CONSTRAINTS = 256;
+
+	private final Map<String, Integer> _vars = new HashMap<String, Integer>();
+	private final Map<Exp, Integer> _opaque = new IdentityHashMap<Exp, Integer>();
+	private final Set<Integer> _integral = new HashSet<Integer>(); // Sums, never NaN
+	private int _atoms = 0;
+
+	private final List<Path> _paths; // The preconditions and a path, or null
+
+	/**
+	 * A number, or a variable times 1 or -1, or a boolean, or an atom of
+	 * unknown value.
+	 */
+	private static class Term {
+		final BigDecimal _value;
+		final int _atom;
+		final int _sign;
+		final Boolean _bool;
+
+		Term(BigDecimal value, int atom, int sign, Boolean bool) {
+			_value = value;
+			_atom = atom;
+			_sign = sign;
+			_bool = bool;
+		}
+
+		boolean numeric() {
+			return _bool == null;
+		}
+	}
+
+	/**
+	 * A constraint sum(coefficient * atom) + constant > 0, or >= 0.
+	 */
+	private static class Linear {
+		final TreeMap<Integer, BigDecimal> _coefs = new TreeMap<Integer, BigDecimal>();
+		BigDecimal _constant = BigDecimal.ZERO;
+		final boolean _strict;
+
+		Linear(boolean strict) {
+			_strict = strict;
+		}
+
+		/**
+		 * Adds factor * t.
+		 */
+		Linear add(Term t, int factor) {
+			if (t._atom < 0)
+				_constant = _constant.add(t._value.multiply(BigDecimal.valueOf(factor)));
+			else
+				add(t._atom, BigDecimal.valueOf(factor * t._sign));
+			return this;
+		}
+
+		void add(int atom, BigDecimal coef) {
+			BigDecimal sum = _coefs.containsKey(atom) ? _coefs.get(atom).add(coef) : coef;
+			if (sum.signum() == 0)
+				_coefs.remove(atom);
+			else
+				_coefs.put(atom, sum);
+		}
+	}
+
+	/**
+	 * What is known along one path: constraints, the atoms known not to be
+	 * NaN, and the values of boolean atoms. The result is set at the end.
+	 */
+	private static class Path {
+		final List<Linear> _facts;
+		final Set<Integer> _defined;
+		final Map<Integer, Boolean> _bools;
+		Term _result = null;
+
+		Path() {
+			this(new ArrayList<Linear>(), new HashSet<Integer>(), new HashMap<Integer, Boolean>());
+		}
+
+		Path(List<Linear> facts, Set<Integer> defined, Map<Integer, Boolean> bools) {
+			_facts = facts;
+			_defined = defined;
+			_bools = bools;
+		}
+
+		Path copy() {
+			return new Path(new ArrayList<Linear>(_facts), new HashSet<Integer>(_defined),
+					new HashMap<Integer, Boolean>(_bools));
+		}
+	}
+
+	Verifier(LambdaExp e, SpecCase speccase) {
+		Env<Term> formals = new EmptyEnv<Term>();
+		Path pre = new Path();
+		for (Exp precondition : speccase.preconditions())
+			pre = branch(precondition, formals, pre, true).get(0);
+		List<Path> paths = new ArrayList<Path>();
+		_paths = paths(e.body(), formals, pre, paths) ? paths : null;
+	}
+
+	/**
+	 * @return true if precondition holds whatever the actual parameters.
+	 */
+	boolean selects(Exp precondition) {
+		return holds(precondition, new EmptyEnv<Term>(), new Path());
+	}
+
+	/**
+	 * @return true if postcondition holds whenever the case is selected and
+	 *         the body returns.
+	 */
+	boolean holds(Exp postcondition) {
+		if (_paths == null)
+			return false;
+		for (Path path : _paths) {
+			Env<Term> env = new ExtendEnv<Term>(new EmptyEnv<Term>(), "result", path._result);
+			if (!holds(postcondition, env, path))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean holds(Exp condition, Env<Term> env, Path path) {
+		if (unsat(path._facts, null))
+			return true; // The path is never taken
+		if (!(condition instanceof BinaryComparator)) {
+			if (!(condition instanceof BoolExp || condition instanceof VarExp))
+				return false;
+			Term t = term(condition, env);
+			if (t._bool != null)
+				return t._bool;
+			return t._atom >= 0 && Boolean.TRUE.equals(path._bools.get(t._atom));
+		}
+		BinaryComparator c = (BinaryComparator) condition;
+		Term first = simple(c.first_exp(), env), second = simple(c.second_exp(), env);
+		if (first == null || second == null || !defined(first, path) || !defined(second, path))
+			return false;
+		for (Linear negation : compare(c, first, second, false))
+			if (!unsat(path._facts, negation))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Adds the paths through e, which is evaluated in env after path, to
+	 * paths.
+	 *
+	 * @return false if there are too many paths.
+	 */
+	private boolean paths(Exp e, Env<Term> env, Path path, List<Path> paths) {
+		if (e instanceof IfExp) {
+			IfExp ife = (IfExp) e;
+			for (Path p : branch(ife.conditional(), env, path, true))
+				if (!paths(ife.then_exp(), env, p, paths))
+					return false;
+			for (Path p : branch(ife.conditional(), env, path, false))
+				if (!paths(ife.else_exp(), env, p, paths))
+					return false;
+			return true;
+		}
+		if (e instanceof LetExp) {
+			LetExp let = (LetExp) e;
+			Env<Term> body_env = env;
+			for (int i = 0; i < let.names().size(); i++)
+				body_env = new ExtendEnv<Term>(body_env, let.names().get(i), term(let.value_exps().get(i), env));
+			return paths(let.body(), body_env, path, paths);
+		}
+		if (paths.size() == MAX_PATHS)
+			return false;
+		path._result = term(e, env);
+		paths.add(path);
+		return true;
+	}
+
+	/**
+	 * @return copies of path on which condition evaluates to value. The
+	 *         negation of an equality takes two paths.
+	 */
+	private List<Path> branch(Exp condition, Env<Term> env, Path path, boolean value) {
+		List<Path> paths = new ArrayList<Path>();
+		if (condition instanceof BinaryComparator) {
+			BinaryComparator c = (BinaryComparator) condition;
+			Term first = simple(c.first_exp(), env), second = simple(c.second_exp(), env);
+			if (first == null || second == null) {
+				paths.add(path.copy());
+			} else if (value) {
+				Path p = path.copy();
+				p._facts.addAll(compare(c, first, second, true));
+				define(first, p);
+				define(second, p);
+				paths.add(p);
+			} else if (!defined(first, path) || !defined(second, path)) {
+				paths.add(path.copy()); // A comparison with NaN is #f
+			} else {
+				for (Linear negation : compare(c, first, second, false)) {
+					Path p = path.copy();
+					p._facts.add(negation);
+					paths.add(p);
+				}
+			}
+			return paths;
+		}
+		Path p = path.copy();
+		paths.add(p);
+		if (!(condition instanceof BoolExp || condition instanceof VarExp))
+			return paths;
+		Term t = term(condition, env);
+		Boolean known = t._bool != null ? t._bool : t._atom >= 0 ? p._bools.get(t._atom) : null;
+		if (known != null && known != value)
+			p._facts.add(new Linear(true)); // 0 > 0, so the path is never taken
+		else if (t._atom >= 0)
+			p._bools.put(t._atom, value);
+		return paths;
+	}
+
+	/**
+	 * @return the constraints for c holding, or the alternatives for c not
+	 *         holding, when the operands are not NaN.
+	 */
+	private static List<Linear> compare(BinaryComparator c, Term first, Term second, boolean holds) {
+		List<Linear> result = new ArrayList<Linear>();
+		if (c instanceof EqualExp) {
+			if (holds) {
+				result.add(new Linear(false).add(first, 1).add(second, -1));
+				result.add(new Linear(false).add(second, 1).add(first, -1));
+			} else {
+				result.add(new Linear(true).add(first, 1).add(second, -1));
+				result.add(new Linear(true).add(second, 1).add(first, -1));
+			}
+			return result;
+		}
+		boolean less = c instanceof LessExp || c instanceof LessEqExp;
+		boolean strict = c instanceof LessExp || c instanceof GreaterExp;
+		if (!holds) { // Not (a < b) is (a >= b), and so on
+			less = !less;
+			strict = !strict;
+		}
+		if (less)
+			result.add(new Linear(strict).add(second, 1).add(first, -1));
+		else
+			result.add(new Linear(strict).add(first, 1).add(second, -1));
+		return result;
+	}
+
+	private boolean defined(Term t, Path path) {
+		return t._atom < 0 || _integral.contains(t._atom) || path._defined.contains(t._atom);
+	}
+
+	private static void define(Term t, Path path) {
+		if (t._atom >= 0)
+			path._defined.add(t._atom);
+	}
+
+	/**
+	 * @return e as a number or a variable times 1 or -1, or null.
+	 */
+	private Term simple(Exp e, Env<Term> env) {
+		Term t = term(e, env);
+		return t.numeric() ? t : null;
+	}
+
+	/**
+	 * @return the value of e in env, an opaque atom if it is not simple.
+	 */
+	private Term term(Exp e, Env<Term> env) {
+		if (e instanceof NumExp) {
+			double v = ((NumExp) e).v();
+			return Double.isInfinite(v) ? opaque(e) : new Term(new BigDecimal(v), -1, 1, null);
+		}
+		if (e instanceof BoolExp)
+			return new Term(null, -1, 1, ((BoolExp) e).v());
+		if (e instanceof VarExp) {
+			String name = ((VarExp) e).name();
+			try {
+				return env.get(name);
+			} catch (LookupException ex) {
+				if (!_vars.containsKey(name))
+					_vars.put(name, _atoms++);
+				return new Term(null, _vars.get(name), 1, null);
+			}
+		}
+		if (e instanceof SubExp) {
+			List<Exp> operands = ((SubExp) e).all();
+			if (operands.size() == 1)
+				return term(operands.get(0), env);
+			Exp first = operands.get(0);
+			if (operands.size() == 2 && first instanceof NumExp && ((NumExp) first).v() == 0) {
+				Term t = term(operands.get(1), env);
+				if (t.numeric()) // 0 - x is exactly -x
+					return t._atom < 0 ? new Term(t._value.negate(), -1, 1, null)
+							: new Term(null, t._atom, -t._sign, null);
+			}
+		}
+		Term t = opaque(e);
+		if (e instanceof AddExp)
+			_integral.add(t._atom);
+		return t;
+	}
+
+	private Term opaque(Exp e) {
+		if (!_opaque.containsKey(e))
+			_opaque.put(e, _atoms++);
+		return new Term(null, _opaque.get(e), 1, null);
+	}
+
+	/**
+	 * @return true if facts and extra, if any, have no solution. False when
+	 *         there are too many constraints to decide.
+	 */
+	static boolean unsat(List<Linear> facts, Linear extra) {
+		List<Linear> constraints = new ArrayList<Linear>(facts);
+		if (extra != null)
+			constraints.add(extra);
+		while (true) {
+			Integer atom = null;
+			for (Linear l : constraints) {
+				if (l._coefs.isEmpty()) {
+					int sign = l._constant.signum();
+					if (sign < 0 || (sign == 0 && l._strict))
+						return true;
+				} else if (atom == null)
+					atom = l._coefs.firstKey();
+			}
+			if (atom == null)
+				return false;
+			List<Linear> pos = new ArrayList<Linear>(), neg = new ArrayList<Linear>();
+			List<Linear> next = new ArrayList<Linear>();
+			for (Linear l : constraints) {
+				if (l._coefs.isEmpty())
+					continue;
+				BigDecimal coef = l._coefs.get(atom);
+				if (coef == null)
+					next.add(l);
+				else if (coef.signum() > 0)
+					pos.add(l);
+				else
+					neg.add(l);
+			}
+			if (next.size() + pos.size() * neg.size() > MAX_CONSTRAINTS)
+				return false;
+			for (Linear p : pos)
+				for (Linear n : neg)
+					next.add(combine(p, n, atom));
+			constraints = next;
+		}
+	}
+
+	/**
+	 * @return the sum of p and n scaled so that atom cancels.
+	 */
+	private static Linear combine(Linear p, Linear n, int atom) {
+		BigDecimal pc = p._coefs.get(atom), nc = n._coefs.get(atom).negate();
+		Linear l = new Linear(p._strict || n._strict);
+		for (Map.Entry<Integer, BigDecimal> entry : p._coefs.entrySet())
+			l.add(entry.getKey(), entry.getValue().multiply(nc));
+		for (Map.Entry<Integer, BigDecimal> entry : n._coefs.entrySet())
+			l.add(entry.getKey(), entry.getValue().multiply(pc));
+		l._coefs.remove(atom);
+		l._constant = p._constant.multiply(nc).add(n._constant.multiply(pc));
+		return l;
+	}
+}
@@ -13,28 +13,5 @@
 	)
 )
 
-(define length
-	(lambda (lst)
-		(if (null? lst) 0
-			(+ 1 (length (cdr lst)))
-		)		
-	)
-)
-
-(define append
-	(lambda (lst1 lst2)
-		(if (null? lst1) lst2
-			(if (null? lst2) lst1
-				(cons (car lst1) (append (cdr lst1) lst2))
-			)
-		)		
-	)
-)
-
-(define map
-	(lambda (op lst)
-		(if (null? lst) (list)
-			(cons (op (car lst)) (map op (cdr lst)))
-		)		
-	)
-)
\ No newline at end of file
+/* length, append, map, filter, foldl, foldr, reverse, list_ref and contains
+   are built in, see Primitives.java */